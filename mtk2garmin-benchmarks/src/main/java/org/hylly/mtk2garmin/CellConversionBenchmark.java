@@ -0,0 +1,50 @@
+package org.hylly.mtk2garmin;
+
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Geometry handling of the fixture cell: projection, simplification, handleSingleGeom and
+ * handleMultiGeom into the element store, and tagging. With more than one feature thread the
+ * features are prepared on a fork-join pool like with the featureThreads setting.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CellConversionBenchmark {
+    @Param({"java"})
+    public String simplifier;
+
+    @Param({"1", "4"})
+    public int featureThreads;
+
+    private FixtureCell fixture;
+    private ForkJoinPool featurePool;
+
+    @Setup
+    public void setup() {
+        fixture = FixtureCell.load();
+        featurePool = featureThreads > 1 ? new ForkJoinPool(featureThreads) : null;
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (featurePool != null) {
+            featurePool.shutdown();
+        }
+    }
+
+    @Benchmark
+    public SingleCellConverter convertCell() {
+        SingleCellConverter converter = fixture.newConverter(ConfigFactory.parseMap(Map.of("simplifier", simplifier)), featurePool);
+        fixture.convert(converter);
+        return converter;
+    }
+}
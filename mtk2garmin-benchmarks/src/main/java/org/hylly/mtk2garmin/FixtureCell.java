@@ -0,0 +1,102 @@
+package org.hylly.mtk2garmin;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectLinkedOpenHashMap;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Synthetic MTK cell bundled as fixture-cell.txt, so the benchmarks run without the MML downloads.
+ * Every line is a layer, its fields and the geometry in ETRS-TM35FIN as WKB hex, the same shape
+ * the OGR reader hands to SingleCellConverter.
+ */
+class FixtureCell {
+    static final String TM35FIN = "+proj=utm +zone=35 +ellps=GRS80 +towgs84=0,0,0,0,0,0,0 +units=m +no_defs";
+
+    record FixtureFeature(String layer, Map<String, String> fields, FlatGeometry geom) {
+    }
+
+    final String cell;
+    final double[] extent;
+    final List<FixtureFeature> features = new ArrayList<>();
+
+    private FixtureCell(String cell, double[] extent) {
+        this.cell = cell;
+        this.extent = extent;
+    }
+
+    static FixtureCell load() {
+        try (InputStream in = FixtureCell.class.getResourceAsStream("/fixture-cell.txt")) {
+            if (in == null) {
+                throw new IllegalStateException("fixture-cell.txt not on classpath");
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            FixtureCell fixture = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] cols = line.split("\t");
+                if (cols[0].equals("cell")) {
+                    fixture = new FixtureCell(cols[1], new double[]{
+                            Double.parseDouble(cols[2]), Double.parseDouble(cols[3]),
+                            Double.parseDouble(cols[4]), Double.parseDouble(cols[5])});
+                    continue;
+                }
+                Map<String, String> fields = new Object2ObjectLinkedOpenHashMap<>();
+                for (String kv : cols[1].split(";")) {
+                    String[] parts = kv.split("=", 2);
+                    fields.put(parts[0], parts[1]);
+                }
+                fixture.features.add(new FixtureFeature(cols[0], fields, FlatGeometry.fromWkb(HexFormat.of().parseHex(cols[2]))));
+            }
+            return fixture;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    SingleCellConverter newConverter(Config conf, ForkJoinPool featurePool) {
+        HashMap<String, double[]> gridExtents = new HashMap<>();
+        gridExtents.put(cell, extent);
+        return new SingleCellConverter(new File(cell + ".zip"), conf, gridExtents, null, null, new GeomUtils(), null, TagRules.fromConfig(conf), featurePool);
+    }
+
+    SingleCellConverter newConverter(Config conf) {
+        return newConverter(conf, null);
+    }
+
+    // The Java simplifier, so that the benchmarks run without the GDAL natives
+    SingleCellConverter newConverter() {
+        return newConverter(ConfigFactory.parseMap(Map.of("simplifier", "java")));
+    }
+
+    // Feeds every feature through the same path as the OGR reader, after the WKB has been read
+    void convert(SingleCellConverter converter) {
+        StringTable stringtable = converter.getStringTable();
+        TagHandlerI tagHandler = converter.getTagHandlerMML();
+        for (FixtureFeature feature : features) {
+            Int2ObjectOpenHashMap<String> fields = new Int2ObjectOpenHashMap<>();
+            for (Map.Entry<String, String> field : feature.fields().entrySet()) {
+                fields.put(stringtable.getStringId(field.getKey()), field.getValue());
+            }
+            converter.handleFlatGeometry(feature.layer(), fields, feature.geom().copy(), TM35FIN, tagHandler);
+        }
+        converter.flushFeatures();
+    }
+}
@@ -0,0 +1,43 @@
+package org.hylly.mtk2garmin;
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GeomUtilsBenchmark {
+    private final GeomUtils geomUtils = new GeomUtils();
+    private double[] coords;
+
+    @Setup
+    public void setup() {
+        DoubleArrayList all = new DoubleArrayList();
+        for (FixtureCell.FixtureFeature feature : FixtureCell.load().features) {
+            FlatGeometry geom = feature.geom().copy();
+            geomUtils.transformToSphericMercator(geom, FixtureCell.TM35FIN);
+            geom.forEachCoords(c -> all.addElements(all.size(), c));
+        }
+        coords = all.toDoubleArray();
+    }
+
+    @Benchmark
+    public void hashCoords(Blackhole bh) {
+        for (int i = 0; i < coords.length; i += 2) {
+            bh.consume(geomUtils.hashCoords(coords[i], coords[i + 1]));
+        }
+    }
+
+    @Benchmark
+    public void xy2grid(Blackhole bh) {
+        for (int i = 0; i < coords.length; i += 2) {
+            bh.consume(geomUtils.xy2grid(coords[i], coords[i + 1]));
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.hylly.mtk2garmin;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Spilling one converted fixture cell per call. The merge into the final file happens in the
+ * invocation teardown and is not measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OSMPBFWriterBenchmark {
+    private SingleCellConverter converter;
+    private Path directory;
+    private OSMPBFWriter writer;
+
+    @Setup
+    public void setup() {
+        FixtureCell fixture = FixtureCell.load();
+        converter = fixture.newConverter();
+        fixture.convert(converter);
+        converter.assignFeatureIDs();
+    }
+
+    // A writer per invocation, the merge on close rejects a cell written twice
+    @Setup(Level.Invocation)
+    public void openWriter() throws IOException {
+        directory = Files.createTempDirectory("pbfwriter-bench");
+        writer = new OSMPBFWriter(directory.resolve("bench.osm.pbf").toFile());
+        writer.startWritingOSMPBF();
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeWriter() throws IOException {
+        writer.closeOSMPBFFile();
+        File[] files = directory.toFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                Files.delete(f.toPath());
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public void writeOSMPBFElements() throws IOException {
+        converter.writeTo(writer);
+    }
+}
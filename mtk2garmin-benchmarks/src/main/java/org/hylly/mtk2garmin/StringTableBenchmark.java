@@ -0,0 +1,53 @@
+package org.hylly.mtk2garmin;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StringTableBenchmark {
+    private String[] strings;
+    private StringTable warmTable;
+
+    @Setup
+    public void setup() {
+        // Keys and values in the order the converter meets them, so the repeats match a real cell
+        List<String> all = new ArrayList<>();
+        for (FixtureCell.FixtureFeature feature : FixtureCell.load().features) {
+            all.add(feature.layer().toLowerCase());
+            feature.fields().forEach((k, v) -> {
+                all.add(k);
+                all.add(v);
+            });
+        }
+        strings = all.toArray(new String[0]);
+
+        warmTable = new StringTable();
+        for (String s : strings) {
+            warmTable.getStringId(s);
+        }
+    }
+
+    @Benchmark
+    public void getStringIdExisting(Blackhole bh) {
+        for (String s : strings) {
+            bh.consume(warmTable.getStringId(s));
+        }
+    }
+
+    @Benchmark
+    public void getStringIdFreshTable(Blackhole bh) {
+        StringTable table = new StringTable();
+        for (String s : strings) {
+            bh.consume(table.getStringId(s));
+        }
+    }
+}
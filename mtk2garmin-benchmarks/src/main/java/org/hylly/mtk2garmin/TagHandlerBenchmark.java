@@ -0,0 +1,59 @@
+package org.hylly.mtk2garmin;
+
+import com.typesafe.config.ConfigFactory;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TagHandlerBenchmark {
+    // The compiled tagrules.conf against the hand written MMLTagHandler
+    @Param({"rules", "builtin"})
+    public String tagMapping;
+
+    private TagHandlerI tagHandler;
+    private String[] tyyppis;
+    private Int2ObjectOpenHashMap<String>[] fields;
+    private double[] areas;
+    private final Int2IntOpenHashMap tags = new Int2IntOpenHashMap();
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        StringTable stringtable = new StringTable();
+        tagHandler = TagRules.fromConfig(ConfigFactory.parseMap(Map.of("tagMapping", tagMapping))).handler(TagRules.MML, stringtable);
+
+        FixtureCell fixture = FixtureCell.load();
+        int count = fixture.features.size();
+        tyyppis = new String[count];
+        fields = new Int2ObjectOpenHashMap[count];
+        areas = new double[count];
+        for (int i = 0; i < count; i++) {
+            FixtureCell.FixtureFeature feature = fixture.features.get(i);
+            tyyppis[i] = feature.layer().toLowerCase();
+            fields[i] = new Int2ObjectOpenHashMap<>();
+            for (Map.Entry<String, String> field : feature.fields().entrySet()) {
+                fields[i].put(stringtable.getStringId(field.getKey()), field.getValue());
+            }
+            areas[i] = feature.geom().area();
+        }
+    }
+
+    @Benchmark
+    public void addElementTags(Blackhole bh) {
+        for (int i = 0; i < tyyppis.length; i++) {
+            tags.clear();
+            tagHandler.addElementTags(tags, fields[i], tyyppis[i], areas[i]);
+            bh.consume(tags.size());
+        }
+    }
+}
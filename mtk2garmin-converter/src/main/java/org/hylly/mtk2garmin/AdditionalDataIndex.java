@@ -0,0 +1,379 @@
+package org.hylly.mtk2garmin;
+
+import com.typesafe.config.Config;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import org.gdal.ogr.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.logging.Logger;
+
+// Additional datasources bucketed by the 12x12 grid cells. Layout: magic, feature records
+// ([int length][layer][field values][wkb]), layer table, cell table, footer. Cell table entries are record
+// offsets shifted left by one, the low bit marks features whose envelope crosses the cell edge.
+class AdditionalDataIndex implements AutoCloseable {
+    private static final long MAGIC = 0x4D544B4144495831L; // MTKADIX1
+    private static final int FORMAT_VERSION = 1;
+    private static final double BUCKET_SIZE = 12e3;
+
+    static final List<String> DEPTH_LAYERS = List.of("syvyyskayra_v", "syvyyspiste_p");
+
+    private final Logger logger = Logger.getLogger(AdditionalDataIndex.class.getName());
+
+    private final FileChannel channel;
+    private final ObjectArrayList<IndexedLayer> layers = new ObjectArrayList<>();
+    private final Object2ObjectOpenHashMap<String, long[]> cells = new Object2ObjectOpenHashMap<>();
+
+    record IndexedLayer(String name, String proj4, String[] fieldNames) {
+    }
+
+    record IndexedFeature(IndexedLayer layer, String[] fieldValues, byte[] wkb, boolean crossesEdge) {
+    }
+
+    static AdditionalDataIndex openOrBuild(Config conf, Map<String, double[]> gridExtents) throws IOException {
+        List<String> sources = getSourceFiles(conf);
+        long fingerprint = fingerprint(conf.getString("grid"), sources);
+
+        Path indexFile = conf.hasPath("additionalDataIndex")
+                ? Paths.get(conf.getString("additionalDataIndex"))
+                : Paths.get(conf.getString("output"), "additional-data.idx");
+
+        if (!Files.exists(indexFile) || readFingerprint(indexFile) != fingerprint) {
+            build(indexFile, sources, gridExtents, fingerprint);
+        }
+        return new AdditionalDataIndex(indexFile);
+    }
+
+    private AdditionalDataIndex(Path indexFile) throws IOException {
+        channel = FileChannel.open(indexFile, StandardOpenOption.READ);
+
+        long size = channel.size();
+        ByteBuffer footer = readAt(size - 40, 16);
+        long layerTableOffset = footer.getLong();
+        long cellTableOffset = footer.getLong();
+
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(readAt(layerTableOffset, (int) (size - 40 - layerTableOffset)).array()))) {
+            int layerCount = in.readInt();
+            for (int i = 0; i < layerCount; i++) {
+                String name = in.readUTF();
+                String proj4 = in.readUTF();
+                String[] fieldNames = new String[in.readInt()];
+                for (int f = 0; f < fieldNames.length; f++) {
+                    fieldNames[f] = in.readUTF();
+                }
+                layers.add(new IndexedLayer(name, proj4, fieldNames));
+            }
+
+            int cellCount = in.readInt();
+            for (int i = 0; i < cellCount; i++) {
+                String cell = in.readUTF();
+                long[] offsets = new long[in.readInt()];
+                for (int o = 0; o < offsets.length; o++) {
+                    offsets[o] = in.readLong();
+                }
+                cells.put(cell, offsets);
+            }
+        }
+        logger.info("Additional data index " + indexFile + " opened, " + layers.size() + " layers, " + cells.size() + " cells, cell table at " + cellTableOffset);
+    }
+
+    List<IndexedFeature> getFeatures(String cell) throws IOException {
+        long[] offsets = cells.get(cell);
+        if (offsets == null) {
+            return List.of();
+        }
+
+        List<IndexedFeature> features = new ArrayList<>(offsets.length);
+        for (long entry : offsets) {
+            long offset = entry >>> 1;
+            int length = readAt(offset, 4).getInt();
+            ByteBuffer record = readAt(offset + 4, length);
+
+            IndexedLayer layer = layers.get(readVarInt(record));
+            String[] values = new String[layer.fieldNames().length];
+            for (int i = 0; i < values.length; i++) {
+                byte[] utf8 = new byte[readVarInt(record)];
+                record.get(utf8);
+                values[i] = new String(utf8, StandardCharsets.UTF_8);
+            }
+            byte[] wkb = new byte[record.remaining()];
+            record.get(wkb);
+
+            features.add(new IndexedFeature(layer, values, wkb, (entry & 1) != 0));
+        }
+        return features;
+    }
+
+    private ByteBuffer readAt(long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new EOFException("Truncated additional data index");
+            }
+        }
+        return buf.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static List<String> getSourceFiles(Config conf) {
+        List<String> sources = new ArrayList<>();
+        sources.add(conf.getString("syvyyskayrat"));
+        sources.add(conf.getString("syvyyspisteet"));
+        return sources;
+    }
+
+    private static ObjectOpenHashSet<String> getWantedFields(String layerName) {
+        if (DEPTH_LAYERS.contains(layerName)) {
+            return ShapeSyvyysTagHandler.WANTED_FIELDS;
+        }
+        return null;
+    }
+
+    private static long fingerprint(String grid, List<String> sources) {
+        long hash = FORMAT_VERSION;
+        hash = 31 * hash + grid.hashCode();
+        for (String source : sources) {
+            File f = new File(source);
+            hash = 31 * hash + source.hashCode();
+            hash = 31 * hash + f.length();
+            hash = 31 * hash + f.lastModified();
+
+            File dbf = new File(source.replaceFirst("\\.shp$", ".dbf"));
+            if (!dbf.equals(f)) {
+                hash = 31 * hash + dbf.length();
+                hash = 31 * hash + dbf.lastModified();
+            }
+        }
+        return hash;
+    }
+
+    private static long readFingerprint(Path indexFile) throws IOException {
+        try (FileChannel ch = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            if (ch.size() < 40) {
+                return 0;
+            }
+            ByteBuffer footer = ByteBuffer.allocate(24);
+            ch.read(footer, ch.size() - 24);
+            footer.flip();
+            long fingerprint = footer.getLong();
+            long version = footer.getLong();
+            long magic = footer.getLong();
+            return magic == MAGIC && version == FORMAT_VERSION ? fingerprint : 0;
+        }
+    }
+
+    private static void build(Path indexFile, List<String> sources, Map<String, double[]> gridExtents, long fingerprint) throws IOException {
+        Logger logger = Logger.getLogger(AdditionalDataIndex.class.getName());
+        logger.info("Building additional data index " + indexFile + " from " + sources);
+
+        GridBuckets buckets = new GridBuckets(gridExtents);
+        Map<String, LongArrayList> cellRecords = new TreeMap<>();
+        List<IndexedLayer> indexedLayers = new ArrayList<>();
+
+        Path tmpFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile), 1 << 20));
+             DataOutputStream out = new DataOutputStream(counter)) {
+            out.writeLong(MAGIC);
+
+            ByteArrayOutputStream record = new ByteArrayOutputStream(1 << 12);
+            double[] envelope = new double[4];
+
+            for (String source : sources) {
+                DataSource ds = ogr.Open(source, false);
+                if (ds == null) {
+                    logger.severe("Reading file " + source + " failed");
+                    System.exit(1);
+                }
+
+                for (int l = 0; l < ds.GetLayerCount(); l++) {
+                    Layer lyr = ds.GetLayer(l);
+                    ObjectOpenHashSet<String> wanted = getWantedFields(lyr.GetName());
+                    if (wanted == null) {
+                        logger.warning("Skipping unknown additional datasource layer " + lyr.GetName());
+                        continue;
+                    }
+
+                    FeatureDefn lyrdefn = lyr.GetLayerDefn();
+                    List<String> fieldNames = new ArrayList<>();
+                    List<Integer> fieldIndexes = new ArrayList<>();
+                    for (int f = 0; f < lyrdefn.GetFieldCount(); f++) {
+                        String fname = lyrdefn.GetFieldDefn(f).GetName();
+                        if (wanted.contains(fname)) {
+                            fieldNames.add(fname);
+                            fieldIndexes.add(f);
+                        }
+                    }
+
+                    int layerIndex = indexedLayers.size();
+                    String proj4 = lyr.GetSpatialRef() != null ? lyr.GetSpatialRef().ExportToProj4() : "";
+                    indexedLayers.add(new IndexedLayer(lyr.GetName(), proj4, fieldNames.toArray(new String[0])));
+
+                    long featureCount = 0;
+                    lyr.ResetReading();
+                    for (Feature feat = lyr.GetNextFeature(); feat != null; feat = lyr.GetNextFeature()) {
+                        Geometry geom = feat.GetGeometryRef();
+                        if (geom == null || geom.IsEmpty()) {
+                            feat.delete();
+                            continue;
+                        }
+                        geom.GetEnvelope(envelope);
+
+                        record.reset();
+                        writeVarInt(record, layerIndex);
+                        for (int fieldIndex : fieldIndexes) {
+                            byte[] utf8 = feat.GetFieldAsString(fieldIndex).getBytes(StandardCharsets.UTF_8);
+                            writeVarInt(record, utf8.length);
+                            record.writeBytes(utf8);
+                        }
+                        record.writeBytes(geom.ExportToWkb());
+                        feat.delete();
+
+                        long offset = counter.getCount();
+                        out.writeInt(record.size());
+                        record.writeTo(out);
+
+                        buckets.forEachCell(envelope, (cell, cellExtent) -> {
+                            boolean inside = envelope[0] >= cellExtent[0] && envelope[1] <= cellExtent[1]
+                                    && envelope[2] >= cellExtent[2] && envelope[3] <= cellExtent[3];
+                            cellRecords.computeIfAbsent(cell, c -> new LongArrayList()).add(offset << 1 | (inside ? 0 : 1));
+                        });
+                        featureCount++;
+                    }
+                    logger.info(featureCount + " features indexed from " + source + " / " + lyr.GetName());
+                }
+                ds.delete();
+            }
+
+            out.flush();
+            long layerTableOffset = counter.getCount();
+            out.writeInt(indexedLayers.size());
+            for (IndexedLayer layer : indexedLayers) {
+                out.writeUTF(layer.name());
+                out.writeUTF(layer.proj4());
+                out.writeInt(layer.fieldNames().length);
+                for (String fieldName : layer.fieldNames()) {
+                    out.writeUTF(fieldName);
+                }
+            }
+
+            out.flush();
+            long cellTableOffset = counter.getCount();
+            out.writeInt(cellRecords.size());
+            for (Map.Entry<String, LongArrayList> cell : cellRecords.entrySet()) {
+                out.writeUTF(cell.getKey());
+                out.writeInt(cell.getValue().size());
+                for (long entry : cell.getValue()) {
+                    out.writeLong(entry);
+                }
+            }
+
+            out.writeLong(layerTableOffset);
+            out.writeLong(cellTableOffset);
+            out.writeLong(fingerprint);
+            out.writeLong(FORMAT_VERSION);
+            out.writeLong(MAGIC);
+        }
+        Files.move(tmpFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        logger.info("Additional data index built, " + cellRecords.size() + " cells");
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(ByteBuffer buf) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static class GridBuckets {
+        private final Map<Long, List<String>> buckets = new HashMap<>();
+        private final Map<String, double[]> gridExtents;
+
+        GridBuckets(Map<String, double[]> gridExtents) {
+            this.gridExtents = gridExtents;
+            gridExtents.forEach((cell, extent) -> forEachBucket(extent, bucket ->
+                    buckets.computeIfAbsent(bucket, b -> new ArrayList<>()).add(cell)));
+        }
+
+        void forEachCell(double[] envelope, CellConsumer consumer) {
+            Set<String> seen = new HashSet<>();
+            forEachBucket(envelope, bucket -> {
+                for (String cell : buckets.getOrDefault(bucket, List.of())) {
+                    double[] extent = gridExtents.get(cell);
+                    if (seen.add(cell) && envelope[0] <= extent[1] && envelope[1] >= extent[0]
+                            && envelope[2] <= extent[3] && envelope[3] >= extent[2]) {
+                        consumer.accept(cell, extent);
+                    }
+                }
+            });
+        }
+
+        private static void forEachBucket(double[] extent, java.util.function.LongConsumer consumer) {
+            long minx = (long) Math.floor(extent[0] / BUCKET_SIZE);
+            long maxx = (long) Math.floor(extent[1] / BUCKET_SIZE);
+            long miny = (long) Math.floor(extent[2] / BUCKET_SIZE);
+            long maxy = (long) Math.floor(extent[3] / BUCKET_SIZE);
+            for (long x = minx; x <= maxx; x++) {
+                for (long y = miny; y <= maxy; y++) {
+                    consumer.accept(x << 32 | (y & 0xFFFFFFFFL));
+                }
+            }
+        }
+    }
+
+    private interface CellConsumer {
+        void accept(String cell, double[] extent);
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
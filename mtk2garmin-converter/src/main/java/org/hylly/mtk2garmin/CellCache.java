@@ -0,0 +1,155 @@
+package org.hylly.mtk2garmin;
+
+import com.typesafe.config.Config;
+import org.gdal.gdal.gdal;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+// Converted cells of earlier runs, one file per cell. An entry holds the fingerprint of the cell inputs and
+// the encoded element runs, so an unchanged cell can be written again without converting it. Ids only
+// depend on the data, so a reused cell has exactly the ids a conversion would give it.
+class CellCache {
+    private static final long MAGIC = 0x4D544B43454C4C31L; // MTKCELL1
+    // Bump whenever a change in the conversion would make cached cells differ from converted ones
+    static final int FORMAT_VERSION = 5;
+
+    private final Logger logger = Logger.getLogger(CellCache.class.getName());
+    private final Path directory;
+    private long reused = 0;
+    private long converted = 0;
+
+    record Entry(String cell, String fingerprint, OSMPBFWriter.CellRuns runs) {
+    }
+
+    // Computed once, on first use
+    private static final class ConverterVersion {
+        private static final String VERSION = hashCodeSource() + " gdal " + gdalVersion();
+    }
+
+    // Without the GDAL natives nothing can have been read or simplified with GDAL, so its version does not matter
+    private static String gdalVersion() {
+        try {
+            return gdal.VersionInfo("RELEASE_NAME");
+        } catch (UnsatisfiedLinkError e) {
+            return "none";
+        }
+    }
+
+    static Optional<CellCache> fromConfig(Config conf) throws IOException {
+        if (!conf.hasPath("incremental") || !conf.getBoolean("incremental")) {
+            return Optional.empty();
+        }
+        Path directory = conf.hasPath("cellCacheDir")
+                ? Paths.get(conf.getString("cellCacheDir"))
+                : Paths.get(conf.getString("output"), "cellcache");
+        return Optional.of(new CellCache(directory));
+    }
+
+    CellCache(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        logger.info("Incremental conversion, reusing unchanged cells from " + directory + ", converter " + converterVersion());
+    }
+
+    // Part of every fingerprint, so cells converted by another build of the converter, or with another GDAL,
+    // are converted again even when FORMAT_VERSION was not bumped
+    static String converterVersion() {
+        return ConverterVersion.VERSION;
+    }
+
+    // SHA-256 of the converter jar, or of the class files and resources when run from a build directory
+    private static String hashCodeSource() {
+        try {
+            Path source = Paths.get(CellCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            List<Path> files;
+            if (Files.isDirectory(source)) {
+                try (Stream<Path> walk = Files.walk(source)) {
+                    files = walk.filter(Files::isRegularFile).sorted().toList();
+                }
+            } else {
+                files = List.of(source);
+            }
+            try (DigestOutputStream out = new DigestOutputStream(OutputStream.nullOutputStream(), digest)) {
+                for (Path file : files) {
+                    out.write(source.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+                    Files.copy(file, out);
+                }
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (IOException | URISyntaxException | NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Could not hash the converter for the cell cache", e);
+        }
+    }
+
+    private Path entryFile(String cell) {
+        return directory.resolve(cell + ".cell");
+    }
+
+    // The cached entry of the cell if it was converted from the same inputs, null otherwise
+    Entry load(String cell, String fingerprint) throws IOException {
+        Path file = entryFile(cell);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readLong() != MAGIC || in.readInt() != FORMAT_VERSION || !in.readUTF().equals(fingerprint)) {
+                return null;
+            }
+            return new Entry(cell, fingerprint, new OSMPBFWriter.CellRuns(readBytes(in), readBytes(in), readBytes(in)));
+        } catch (EOFException e) {
+            logger.warning("Truncated cell cache entry for " + cell + ", converting it again");
+            return null;
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    void replay(Entry entry, OSMPBFWriter writer) throws IOException {
+        writer.writeRuns(entry.runs());
+        reused++;
+    }
+
+    void store(Entry entry) throws IOException {
+        Path file = entryFile(entry.cell());
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile), 1 << 16))) {
+            out.writeLong(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(entry.fingerprint());
+            writeBytes(out, entry.runs().nodes());
+            writeBytes(out, entry.runs().ways());
+            writeBytes(out, entry.runs().relations());
+        }
+        // A crash must never leave a half written entry behind a valid header
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        converted++;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    void logStatistics() {
+        logger.info("Cell cache: " + reused + " cells reused, " + converted + " converted");
+    }
+}
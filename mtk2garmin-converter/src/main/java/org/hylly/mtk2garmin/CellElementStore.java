@@ -0,0 +1,274 @@
+package org.hylly.mtk2garmin;
+
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+/*
+ * Columnar storage for the elements of one cell. Every element is addressed by its index in the
+ * parallel columns, way refs point to node indices in a shared ref pool and relation members to
+ * way indices in a shared member pool. Tag sets are packed into one int pool as
+ * [count, key, value, key, value, ...] and can be shared by several elements.
+ */
+class CellElementStore {
+    static final int NO_TAGS = -1;
+
+    static final byte ROLE_ALL = 0;
+    static final byte ROLE_OUTER = 1;
+    static final byte ROLE_INNER = 2;
+
+    private static final byte WAY_PART = 1;
+
+    private final Long2IntOpenHashMap nodeIndex;
+    private final LongArrayList nodeHash;
+    private final DoubleArrayList nodeLon;
+    private final DoubleArrayList nodeLat;
+    private final ByteArrayList nodeFlags;
+    private final IntArrayList nodeTags;
+    private final LongArrayList nodeId;
+
+    private final LongArrayList wayId;
+    private final ByteArrayList wayRole;
+    private final IntArrayList wayTags;
+    private final IntArrayList wayRefStart = new IntArrayList();
+    private final IntArrayList refPool;
+
+    private final LongArrayList relationId = new LongArrayList();
+    private final IntArrayList relationTags = new IntArrayList();
+    private final IntArrayList relationMemberStart = new IntArrayList();
+    private final IntArrayList memberPool = new IntArrayList();
+
+    private final IntArrayList tagPool = new IntArrayList();
+
+    CellElementStore(int expectedNodes, int expectedWays) {
+        nodeIndex = new Long2IntOpenHashMap(expectedNodes);
+        nodeIndex.defaultReturnValue(-1);
+        nodeHash = new LongArrayList(expectedNodes);
+        nodeLon = new DoubleArrayList(expectedNodes);
+        nodeLat = new DoubleArrayList(expectedNodes);
+        nodeFlags = new ByteArrayList(expectedNodes);
+        nodeTags = new IntArrayList(expectedNodes);
+        nodeId = new LongArrayList(expectedNodes);
+
+        wayId = new LongArrayList(expectedWays);
+        wayRole = new ByteArrayList(expectedWays);
+        wayTags = new IntArrayList(expectedWays);
+        refPool = new IntArrayList(expectedNodes * 2);
+        wayRefStart.add(0);
+        relationMemberStart.add(0);
+    }
+
+    int findNode(long hash) {
+        return nodeIndex.get(hash);
+    }
+
+    int addNode(long hash, double lon, double lat, boolean wayPart) {
+        int index = nodeHash.size();
+        nodeIndex.put(hash, index);
+        nodeHash.add(hash);
+        nodeLon.add(lon);
+        nodeLat.add(lat);
+        nodeFlags.add(wayPart ? WAY_PART : 0);
+        nodeTags.add(NO_TAGS);
+        nodeId.add(0);
+        return index;
+    }
+
+    // Moves the tags of a node to a new node in the same place that no way refers to. The new node is not
+    // found by its hash, which keeps finding the original.
+    int detachNodeTags(int node) {
+        int index = nodeHash.size();
+        nodeHash.add(nodeHash.getLong(node));
+        nodeLon.add(nodeLon.getDouble(node));
+        nodeLat.add(nodeLat.getDouble(node));
+        nodeFlags.add((byte) 0);
+        nodeTags.add(nodeTags.getInt(node));
+        nodeId.add(0);
+        nodeTags.set(node, NO_TAGS);
+        return index;
+    }
+
+    int getNodeCount() {
+        return nodeHash.size();
+    }
+
+    long getNodeHash(int node) {
+        return nodeHash.getLong(node);
+    }
+
+    double getNodeLon(int node) {
+        return nodeLon.getDouble(node);
+    }
+
+    double getNodeLat(int node) {
+        return nodeLat.getDouble(node);
+    }
+
+    boolean isNodeWayPart(int node) {
+        return (nodeFlags.getByte(node) & WAY_PART) != 0;
+    }
+
+    void setNodeWayPart(int node, boolean wayPart) {
+        byte flags = nodeFlags.getByte(node);
+        nodeFlags.set(node, (byte) (wayPart ? flags | WAY_PART : flags & ~WAY_PART));
+    }
+
+    int getNodeTags(int node) {
+        return nodeTags.getInt(node);
+    }
+
+    void setNodeTags(int node, int tagSet) {
+        nodeTags.set(node, tagSet);
+    }
+
+    long getNodeId(int node) {
+        return nodeId.getLong(node);
+    }
+
+    void setNodeId(int node, long id) {
+        nodeId.set(node, id);
+    }
+
+    int addWay(long id, byte role) {
+        int index = wayId.size();
+        wayId.add(id);
+        wayRole.add(role);
+        wayTags.add(NO_TAGS);
+        wayRefStart.add(refPool.size());
+        return index;
+    }
+
+    // Refs can only be appended to the most recently added way
+    void addWayRef(int node) {
+        refPool.add(node);
+        wayRefStart.set(wayRefStart.size() - 1, refPool.size());
+    }
+
+    void truncateWays(int wayCount) {
+        refPool.size(wayRefStart.getInt(wayCount));
+        wayRefStart.size(wayCount + 1);
+        wayId.size(wayCount);
+        wayRole.size(wayCount);
+        wayTags.size(wayCount);
+    }
+
+    int getWayCount() {
+        return wayId.size();
+    }
+
+    long getWayId(int way) {
+        return wayId.getLong(way);
+    }
+
+    void offsetWayIds(long base) {
+        for (int i = 0; i < wayId.size(); i++) {
+            wayId.set(i, wayId.getLong(i) + base);
+        }
+    }
+
+    byte getWayRole(int way) {
+        return wayRole.getByte(way);
+    }
+
+    void setWayRole(int way, byte role) {
+        wayRole.set(way, role);
+    }
+
+    int getWayTags(int way) {
+        return wayTags.getInt(way);
+    }
+
+    void setWayTags(int way, int tagSet) {
+        wayTags.set(way, tagSet);
+    }
+
+    int getWayRefCount(int way) {
+        return wayRefStart.getInt(way + 1) - wayRefStart.getInt(way);
+    }
+
+    int getWayRef(int way, int i) {
+        return refPool.getInt(wayRefStart.getInt(way) + i);
+    }
+
+    int addRelation(long id, int tagSet) {
+        int index = relationId.size();
+        relationId.add(id);
+        relationTags.add(tagSet);
+        relationMemberStart.add(memberPool.size());
+        return index;
+    }
+
+    // Members can only be appended to the most recently added relation
+    void addRelationMember(int way) {
+        memberPool.add(way);
+        relationMemberStart.set(relationMemberStart.size() - 1, memberPool.size());
+    }
+
+    int getRelationCount() {
+        return relationId.size();
+    }
+
+    long getRelationId(int relation) {
+        return relationId.getLong(relation);
+    }
+
+    void offsetRelationIds(long base) {
+        for (int i = 0; i < relationId.size(); i++) {
+            relationId.set(i, relationId.getLong(i) + base);
+        }
+    }
+
+    int getRelationTags(int relation) {
+        return relationTags.getInt(relation);
+    }
+
+    void setRelationTags(int relation, int tagSet) {
+        relationTags.set(relation, tagSet);
+    }
+
+    int getRelationMemberCount(int relation) {
+        return relationMemberStart.getInt(relation + 1) - relationMemberStart.getInt(relation);
+    }
+
+    int getRelationMember(int relation, int i) {
+        return memberPool.getInt(relationMemberStart.getInt(relation) + i);
+    }
+
+    int addTagSet(Int2IntMap tags) {
+        if (tags.isEmpty()) {
+            return NO_TAGS;
+        }
+        int offset = tagPool.size();
+        tagPool.add(tags.size());
+        for (Int2IntMap.Entry t : tags.int2IntEntrySet()) {
+            tagPool.add(t.getIntKey());
+            tagPool.add(t.getIntValue());
+        }
+        return offset;
+    }
+
+    void loadTagSet(int tagSet, Int2IntMap tags) {
+        if (tagSet == NO_TAGS) {
+            return;
+        }
+        int count = tagPool.getInt(tagSet);
+        for (int i = 0; i < count; i++) {
+            tags.put(tagPool.getInt(tagSet + 1 + 2 * i), tagPool.getInt(tagSet + 2 + 2 * i));
+        }
+    }
+
+    int getTagCount(int tagSet) {
+        return tagSet == NO_TAGS ? 0 : tagPool.getInt(tagSet);
+    }
+
+    int getTagKey(int tagSet, int i) {
+        return tagPool.getInt(tagSet + 1 + 2 * i);
+    }
+
+    int getTagValue(int tagSet, int i) {
+        return tagPool.getInt(tagSet + 2 + 2 * i);
+    }
+}
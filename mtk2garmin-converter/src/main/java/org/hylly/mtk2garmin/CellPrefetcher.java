@@ -0,0 +1,229 @@
+package org.hylly.mtk2garmin;
+
+import com.typesafe.config.Config;
+import org.gdal.gdal.gdal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/*
+ * Reads the inputs of the next cells while the workers convert the current ones. With prefetchCells = N
+ * the KRK zips of up to N cells are looked up, and their MTK and KRK zips read and inflated, on virtual
+ * threads, in the order the cells are submitted. A cell holds its place until it has been converted, so
+ * at most N cells are staged at a time. Entries are staged in GDAL's /vsimem for the GDAL readers and on
+ * the heap for the Java GML reader.
+ *
+ * A cell whose staging failed reads its zips from disk as usual, so errors show up where they did before.
+ */
+class CellPrefetcher implements AutoCloseable {
+    private static final String STAGING_ROOT = "/vsimem/mtk2garmin-prefetch/";
+
+    private final Logger logger = Logger.getLogger(CellPrefetcher.class.getName());
+    private final Config conf;
+    private final boolean javaGmlReader;
+    private final Semaphore places;
+    private final ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<File, CompletableFuture<CellInputs>> cells = new ConcurrentHashMap<>();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong stagedBytes = new AtomicLong();
+
+    // Inputs of one cell, released once it has been converted
+    class CellInputs implements AutoCloseable {
+        private final String cell;
+        private List<File> krkFiles;
+        // Staging directory of each zip and the entries staged in it
+        private final Map<File, String> stagedZips = new HashMap<>();
+        private final Map<File, List<String>> stagedEntries = new HashMap<>();
+        private final List<byte[]> gmlFiles = new ArrayList<>();
+        private boolean closed = false;
+
+        private CellInputs(String cell) {
+            this.cell = cell;
+        }
+
+        // Null when there is no KRK directory for the cell, as SingleCellConverter.getKrkFiles
+        List<File> getKrkFiles() {
+            return krkFiles == null ? null : new ArrayList<>(krkFiles);
+        }
+
+        // GML files of the MTK zip in name order, for the Java GML reader
+        List<byte[]> getGmlFiles() {
+            return gmlFiles;
+        }
+
+        // GDAL path of an entry of a staged zip, or of its only entry when entry is null. Null when the
+        // zip was not staged and has to be read through /vsizip.
+        String stagedPath(File zip, String entry) {
+            String directory = stagedZips.get(zip);
+            List<String> entries = stagedEntries.get(zip);
+            if (directory == null) {
+                return null;
+            }
+            if (entry == null) {
+                return entries.size() == 1 ? directory + entries.get(0) : null;
+            }
+            return entries.contains(entry) ? directory + entry : null;
+        }
+
+        private void stage(File zip, boolean gml) throws IOException {
+            String directory = STAGING_ROOT + cell + "/" + zip.getName() + "/";
+            List<String> entries = new ArrayList<>();
+            stagedZips.put(zip, directory);
+            stagedEntries.put(zip, entries);
+            try (ZipFile zipFile = new ZipFile(zip)) {
+                if (gml) {
+                    for (ZipEntry entry : MTKGMLReader.gmlEntries(zipFile)) {
+                        gmlFiles.add(read(zipFile, entry));
+                    }
+                    return;
+                }
+                for (ZipEntry entry : zipFile.stream().filter(e -> !e.isDirectory()).toList()) {
+                    if (gdal.FileFromMemBuffer(directory + entry.getName(), read(zipFile, entry)) != 0) {
+                        throw new IOException("Staging " + zip + "/" + entry.getName() + " in memory failed");
+                    }
+                    entries.add(entry.getName());
+                }
+            }
+        }
+
+        private byte[] read(ZipFile zipFile, ZipEntry entry) throws IOException {
+            try (InputStream in = zipFile.getInputStream(entry)) {
+                byte[] bytes = in.readAllBytes();
+                stagedBytes.addAndGet(bytes.length);
+                return bytes;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            for (Map.Entry<File, String> zip : stagedZips.entrySet()) {
+                for (String entry : stagedEntries.get(zip.getKey())) {
+                    gdal.Unlink(zip.getValue() + entry);
+                }
+            }
+            gmlFiles.clear();
+            places.release();
+        }
+    }
+
+    static Optional<CellPrefetcher> fromConfig(Config conf) {
+        int prefetchCells = conf.hasPath("prefetchCells") ? conf.getInt("prefetchCells") : 0;
+        if (prefetchCells <= 0) {
+            return Optional.empty();
+        }
+        boolean javaGmlReader = conf.hasPath("gmlReader") && "java".equals(conf.getString("gmlReader"));
+        return Optional.of(new CellPrefetcher(conf, prefetchCells, javaGmlReader));
+    }
+
+    CellPrefetcher(Config conf, int prefetchCells, boolean javaGmlReader) {
+        this.conf = conf;
+        this.javaGmlReader = javaGmlReader;
+        this.places = new Semaphore(prefetchCells, true);
+        logger.info("Prefetching the inputs of " + prefetchCells + " cells ahead");
+    }
+
+    // Starts staging the cells in the order they will be converted. Every one of them must be taken.
+    void prefetch(List<File> cellFiles) {
+        List<CompletableFuture<CellInputs>> results = new ArrayList<>(cellFiles.size());
+        for (File cellFile : cellFiles) {
+            CompletableFuture<CellInputs> result = new CompletableFuture<>();
+            results.add(result);
+            cells.put(cellFile, result);
+        }
+        // A single thread takes the places in order, so a cell never waits for one held by a later cell
+        threads.execute(() -> {
+            int i = 0;
+            try {
+                for (; i < cellFiles.size(); i++) {
+                    places.acquire();
+                    File cellFile = cellFiles.get(i);
+                    CompletableFuture<CellInputs> result = results.get(i);
+                    threads.execute(() -> stage(cellFile, result));
+                }
+            } catch (InterruptedException | RejectedExecutionException e) {
+                // Stopped by close, the converters read the cells that were not staged from disk
+                for (; i < results.size(); i++) {
+                    results.get(i).complete(null);
+                }
+            }
+        });
+    }
+
+    private void stage(File cellFile, CompletableFuture<CellInputs> result) {
+        String cell = SingleCellConverter.cellOf(cellFile);
+        CellInputs inputs = new CellInputs(cell);
+        boolean staged = false;
+        try {
+            inputs.krkFiles = SingleCellConverter.getKrkFiles(conf, cell);
+            inputs.stage(cellFile, javaGmlReader);
+            if (inputs.krkFiles != null) {
+                for (File krkf : inputs.krkFiles) {
+                    inputs.stage(krkf, false);
+                }
+            }
+            staged = true;
+        } catch (IOException | RuntimeException e) {
+            logger.warning("Prefetching " + cellFile + " failed, reading it from disk: " + e);
+        } finally {
+            // Also after errors a converter waits for the cell. Inputs that can not be taken any more, because
+            // staging failed or close already gave up on the cell, are released here.
+            if (!staged || !result.complete(inputs)) {
+                result.complete(null);
+                inputs.close();
+            }
+        }
+    }
+
+    // Waits for the staged inputs of a cell, null if it was not prefetched or staging failed. The inputs
+    // must be closed once the cell has been converted.
+    CellInputs take(File cellFile) {
+        CompletableFuture<CellInputs> result = cells.remove(cellFile);
+        if (result == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        CellInputs inputs = result.join();
+        waitNanos.addAndGet(System.nanoTime() - start);
+        return inputs;
+    }
+
+    // Stops staging and releases the inputs no converter has taken. Converters still waiting for a cell get
+    // null and read it from disk, so a failed run does not hang on them.
+    @Override
+    public void close() {
+        threads.shutdownNow();
+        for (CompletableFuture<CellInputs> result : cells.values()) {
+            if (!result.complete(null)) {
+                CellInputs inputs = result.getNow(null);
+                if (inputs != null) {
+                    inputs.close();
+                }
+            }
+        }
+        cells.clear();
+        logger.info(String.format("Prefetched %.1f MB of cell inputs, converters waited %.1f s for them",
+                stagedBytes.get() / 1e6, waitNanos.get() / 1e9));
+    }
+}
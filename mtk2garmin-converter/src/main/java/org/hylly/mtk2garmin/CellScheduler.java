@@ -0,0 +1,132 @@
+package org.hylly.mtk2garmin;
+
+import com.typesafe.config.Config;
+import it.unimi.dsi.fastutil.objects.Object2DoubleOpenHashMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Decides the order the cells of an area are handed to the workers. The cells of an area are committed in
+ * the order they are submitted, so a large cell submitted last keeps the commits, and soon the workers,
+ * waiting while it is converted. With cellSchedule = cost (default) the most expensive cells go first and
+ * the small ones fill in behind them, cellSchedule = name keeps the alphabetical order.
+ *
+ * The cost of a cell is its converting time in an earlier timing report when it is there, otherwise the
+ * size of its MTK and KRK zips scaled to milliseconds by the cells that have both. Areas are still done
+ * one after another in name order.
+ */
+class CellScheduler {
+    private static final Pattern JSON_STAGE = Pattern.compile("\"(mtk|krk|additional)\":\\{\"wallMs\":([0-9.]+)");
+    private static final Pattern JSON_CELL = Pattern.compile("\"cell\":\"([A-Z0-9]+)\"");
+
+    private final Logger logger = Logger.getLogger(CellScheduler.class.getName());
+    private final Config conf;
+    private final boolean byCost;
+    // Milliseconds spent reading and converting each cell in an earlier run
+    private final Object2DoubleOpenHashMap<String> pastMillis = new Object2DoubleOpenHashMap<>();
+
+    // Reads the earlier report right away, before a timing report of this run can overwrite it
+    static CellScheduler fromConfig(Config conf) throws IOException {
+        String schedule = conf.hasPath("cellSchedule") ? conf.getString("cellSchedule") : "cost";
+        if (!"cost".equals(schedule) && !"name".equals(schedule)) {
+            throw new IllegalArgumentException("Unknown cellSchedule " + schedule + ", expected cost or name");
+        }
+        CellScheduler scheduler = new CellScheduler(conf, "cost".equals(schedule));
+        String costs = conf.hasPath("cellCosts") ? conf.getString("cellCosts")
+                : conf.hasPath("timingReport") ? conf.getString("timingReport") : null;
+        if (scheduler.byCost && costs != null && Files.exists(Paths.get(costs))) {
+            scheduler.readReport(Paths.get(costs));
+        }
+        return scheduler;
+    }
+
+    CellScheduler(Config conf, boolean byCost) {
+        this.conf = conf;
+        this.byCost = byCost;
+    }
+
+    private void readReport(Path report) throws IOException {
+        List<String> lines = Files.readAllLines(report, StandardCharsets.UTF_8);
+        if (report.getFileName().toString().endsWith(".csv")) {
+            if (lines.isEmpty()) {
+                return;
+            }
+            List<String> header = Arrays.asList(lines.get(0).split(","));
+            int cell = header.indexOf("cell");
+            int[] stages = {header.indexOf("mtk_wall_ms"), header.indexOf("krk_wall_ms"), header.indexOf("additional_wall_ms")};
+            for (String line : lines.subList(1, lines.size())) {
+                String[] values = line.split(",");
+                double millis = 0;
+                for (int stage : stages) {
+                    millis += Math.max(0, Double.parseDouble(values[stage]));
+                }
+                pastMillis.put(values[cell], millis);
+            }
+        } else {
+            for (String line : lines) {
+                Matcher cell = JSON_CELL.matcher(line);
+                if (!cell.find()) {
+                    continue;
+                }
+                double millis = 0;
+                for (Matcher stage = JSON_STAGE.matcher(line); stage.find(); ) {
+                    millis += Double.parseDouble(stage.group(2));
+                }
+                pastMillis.put(cell.group(1), millis);
+            }
+        }
+        logger.info("Read the converting times of " + pastMillis.size() + " cells from " + report);
+    }
+
+    // Indexes of the cells in the order they should be submitted
+    int[] order(List<File> cells) {
+        Integer[] order = new Integer[cells.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        if (byCost && cells.size() > 1) {
+            double[] costs = costs(cells);
+            // Ties keep the name order, so the same input is always submitted the same way
+            Arrays.sort(order, (a, b) -> costs[a] != costs[b] ? Double.compare(costs[b], costs[a]) : Integer.compare(a, b));
+        }
+        return Arrays.stream(order).mapToInt(Integer::intValue).toArray();
+    }
+
+    private double[] costs(List<File> cells) {
+        double[] bytes = new double[cells.size()];
+        double knownBytes = 0;
+        double knownMillis = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            String cell = SingleCellConverter.cellOf(cells.get(i));
+            bytes[i] = cells.get(i).length();
+            List<File> krkFiles = SingleCellConverter.getKrkFiles(conf, cell);
+            if (krkFiles != null) {
+                for (File krkf : krkFiles) {
+                    bytes[i] += krkf.length();
+                }
+            }
+            if (pastMillis.containsKey(cell)) {
+                knownBytes += bytes[i];
+                knownMillis += pastMillis.getDouble(cell);
+            }
+        }
+
+        double millisPerByte = knownBytes > 0 ? knownMillis / knownBytes : 1;
+        double[] costs = new double[bytes.length];
+        for (int i = 0; i < costs.length; i++) {
+            String cell = SingleCellConverter.cellOf(cells.get(i));
+            costs[i] = pastMillis.containsKey(cell) ? pastMillis.getDouble(cell) : bytes[i] * millisPerByte;
+        }
+        return costs;
+    }
+}
@@ -0,0 +1,162 @@
+package org.hylly.mtk2garmin;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Timings and counts of one cell for the timing report. The stages get the wall time, CPU time and
+ * allocated bytes of the thread running them, -1 when the JVM does not measure them. Parts run inside
+ * the stages, many times per cell, and only sum wall time. With a feature pool the transform part is
+ * summed over the pool threads, so it can be longer than its stage.
+ */
+class CellStats {
+    enum Stage {
+        // Reading the MTK cell, its KRK parcels and the additional data, including everything done per feature
+        MTK, KRK, ADDITIONAL,
+        // Id assignment, then encoding and spilling the runs of the cell
+        IDS, WRITE
+    }
+
+    enum Part {
+        // Opening the zips through /vsizip and copying them to the memory driver
+        OPEN,
+        // Projection and simplification
+        TRANSFORM,
+        // Tag mapping of the features
+        TAGS,
+        // Sorting and encoding the element runs, appending them to the spill files
+        ENCODE, SPILL
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final String cell;
+    private final long[] wallNanos = new long[Stage.values().length];
+    private final long[] cpuNanos = new long[Stage.values().length];
+    private final long[] allocatedBytes = new long[Stage.values().length];
+    private final AtomicLongArray partNanos = new AtomicLongArray(Part.values().length);
+    private final AtomicLong nativeGeometries = new AtomicLong();
+    private long features = 0;
+    private long nodes = 0;
+    private long ways = 0;
+    private long relations = 0;
+    private long encodedBytes = 0;
+
+    private Stage stage;
+    private long stageWall;
+    private long stageCpu;
+    private long stageAllocated;
+
+    CellStats(String cell) {
+        this.cell = cell;
+    }
+
+    void startStage(Stage stage) {
+        this.stage = stage;
+        stageWall = System.nanoTime();
+        stageCpu = cpuTime();
+        stageAllocated = allocatedBytes();
+    }
+
+    void endStage() {
+        int i = stage.ordinal();
+        wallNanos[i] += System.nanoTime() - stageWall;
+        cpuNanos[i] = stageCpu < 0 ? -1 : cpuNanos[i] + cpuTime() - stageCpu;
+        allocatedBytes[i] = stageAllocated < 0 ? -1 : allocatedBytes[i] + allocatedBytes() - stageAllocated;
+        stage = null;
+    }
+
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+    }
+
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean threads && threads.isThreadAllocatedMemoryEnabled()) {
+            return threads.getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+
+    void addPartNanos(Part part, long nanos) {
+        partNanos.addAndGet(part.ordinal(), nanos);
+    }
+
+    void countFeature() {
+        features++;
+    }
+
+    // GDAL geometries created while converting the cell
+    void countNativeGeometries(int count) {
+        nativeGeometries.addAndGet(count);
+    }
+
+    void setElementCounts(long nodes, long ways, long relations) {
+        this.nodes = nodes;
+        this.ways = ways;
+        this.relations = relations;
+    }
+
+    void addEncodedBytes(long bytes) {
+        encodedBytes += bytes;
+    }
+
+    String getCell() {
+        return cell;
+    }
+
+    long getWallNanos(Stage stage) {
+        return wallNanos[stage.ordinal()];
+    }
+
+    long getCpuNanos(Stage stage) {
+        return cpuNanos[stage.ordinal()];
+    }
+
+    long getAllocatedBytes(Stage stage) {
+        return allocatedBytes[stage.ordinal()];
+    }
+
+    long getPartNanos(Part part) {
+        return partNanos.get(part.ordinal());
+    }
+
+    long getTotalWallNanos() {
+        long total = 0;
+        for (long nanos : wallNanos) {
+            total += nanos;
+        }
+        return total;
+    }
+
+    long getFeatures() {
+        return features;
+    }
+
+    long getNativeGeometries() {
+        return nativeGeometries.get();
+    }
+
+    long getNodes() {
+        return nodes;
+    }
+
+    long getWays() {
+        return ways;
+    }
+
+    long getRelations() {
+        return relations;
+    }
+
+    long getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    // Over the whole time spent on the cell
+    double perSecond(long count) {
+        long nanos = getTotalWallNanos();
+        return nanos == 0 ? 0 : count * 1e9 / nanos;
+    }
+}
@@ -0,0 +1,249 @@
+package org.hylly.mtk2garmin;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/*
+ * Counters of a conversion, updated by the main thread as cells are committed and read by JMX or the
+ * metrics endpoint from their own threads. The counts are atomic and the throughput samples are guarded by
+ * this object.
+ */
+class ConversionMetrics implements ConversionMetricsMBean, AutoCloseable {
+    private static final int RATE_WINDOW = 32;
+    private static final Path PROC_STATUS = Paths.get("/proc/self/status");
+
+    private final Logger logger = Logger.getLogger(ConversionMetrics.class.getName());
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final List<BufferPoolMXBean> bufferPools = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+    private ObjectName name;
+
+    private volatile long cellsTotal = 0;
+    private final AtomicLong cellsSubmitted = new AtomicLong();
+    private final AtomicLong cellsDone = new AtomicLong();
+    private final AtomicLong cellsCached = new AtomicLong();
+    private final AtomicLong cellsSkipped = new AtomicLong();
+    private final AtomicLong features = new AtomicLong();
+    private final AtomicLong nodes = new AtomicLong();
+    private final AtomicLong ways = new AtomicLong();
+    private volatile int lastStringTableSize = 0;
+    private volatile int maxStringTableSize = 0;
+
+    // Ring of the time and running totals after each of the last written cells
+    private final long[] sampleNanos = new long[RATE_WINDOW];
+    private final long[][] sampleTotals = new long[RATE_WINDOW][3];
+    private int samples = 0;
+    private volatile long lastCellNanos;
+
+    ConversionMetrics() {
+        this.lastCellNanos = System.nanoTime();
+        this.sampleNanos[0] = lastCellNanos;
+        this.samples = 1;
+    }
+
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            name = new ObjectName("org.hylly.mtk2garmin:type=ConversionMetrics");
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            // Monitoring is not worth failing the run for
+            logger.warning("Registering conversion metrics failed: " + e);
+            name = null;
+        }
+    }
+
+    void setCellsTotal(long cells) {
+        cellsTotal = cells;
+    }
+
+    void cellSubmitted() {
+        cellsSubmitted.incrementAndGet();
+    }
+
+    void cellWritten(CellStats stats, int strings) {
+        features.addAndGet(stats.getFeatures());
+        nodes.addAndGet(stats.getNodes());
+        ways.addAndGet(stats.getWays());
+        lastStringTableSize = strings;
+        maxStringTableSize = Math.max(maxStringTableSize, strings);
+        cellDone();
+    }
+
+    void cellCached() {
+        cellsCached.incrementAndGet();
+        cellDone();
+    }
+
+    void cellSkipped() {
+        cellsSkipped.incrementAndGet();
+        cellDone();
+    }
+
+    private synchronized void cellDone() {
+        cellsDone.incrementAndGet();
+        lastCellNanos = System.nanoTime();
+        int slot = samples % RATE_WINDOW;
+        sampleNanos[slot] = lastCellNanos;
+        sampleTotals[slot][0] = features.get();
+        sampleTotals[slot][1] = nodes.get();
+        sampleTotals[slot][2] = ways.get();
+        samples++;
+    }
+
+    private synchronized double recentRate(int counter, long total) {
+        int oldest = samples <= RATE_WINDOW ? 0 : samples % RATE_WINDOW;
+        long nanos = System.nanoTime() - sampleNanos[oldest];
+        return nanos <= 0 ? 0 : (total - sampleTotals[oldest][counter]) * 1e9 / nanos;
+    }
+
+    @Override
+    public long getCellsTotal() {
+        return cellsTotal;
+    }
+
+    @Override
+    public long getCellsDone() {
+        return cellsDone.get();
+    }
+
+    @Override
+    public long getCellsCached() {
+        return cellsCached.get();
+    }
+
+    @Override
+    public long getCellsSkipped() {
+        return cellsSkipped.get();
+    }
+
+    @Override
+    public long getCellsRemaining() {
+        return Math.max(0, cellsTotal - cellsDone.get());
+    }
+
+    @Override
+    public long getCellsInFlight() {
+        return cellsSubmitted.get() - cellsDone.get();
+    }
+
+    @Override
+    public long getFeatures() {
+        return features.get();
+    }
+
+    @Override
+    public long getNodes() {
+        return nodes.get();
+    }
+
+    @Override
+    public long getWays() {
+        return ways.get();
+    }
+
+    @Override
+    public double getFeaturesPerSecond() {
+        return recentRate(0, features.get());
+    }
+
+    @Override
+    public double getNodesPerSecond() {
+        return recentRate(1, nodes.get());
+    }
+
+    @Override
+    public double getWaysPerSecond() {
+        return recentRate(2, ways.get());
+    }
+
+    @Override
+    public double getSecondsSinceLastCell() {
+        return (System.nanoTime() - lastCellNanos) / 1e9;
+    }
+
+    @Override
+    public int getLastStringTableSize() {
+        return lastStringTableSize;
+    }
+
+    @Override
+    public int getMaxStringTableSize() {
+        return maxStringTableSize;
+    }
+
+    @Override
+    public long getHeapUsedBytes() {
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    @Override
+    public long getHeapMaxBytes() {
+        return memory.getHeapMemoryUsage().getMax();
+    }
+
+    @Override
+    public long getNonHeapUsedBytes() {
+        return memory.getNonHeapMemoryUsage().getUsed();
+    }
+
+    @Override
+    public long getDirectBufferBytes() {
+        return bufferPoolBytes("direct");
+    }
+
+    @Override
+    public long getMappedBufferBytes() {
+        return bufferPoolBytes("mapped");
+    }
+
+    private long bufferPoolBytes(String pool) {
+        for (BufferPoolMXBean bufferPool : bufferPools) {
+            if (bufferPool.getName().equals(pool)) {
+                return bufferPool.getMemoryUsed();
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public long getResidentBytes() {
+        try {
+            for (String line : Files.readAllLines(PROC_STATUS, StandardCharsets.UTF_8)) {
+                // VmRSS:    123456 kB
+                if (line.startsWith("VmRSS:")) {
+                    String[] parts = line.substring(6).trim().split("\\s+");
+                    return Long.parseLong(parts[0]) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() {
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                logger.warning("Unregistering conversion metrics failed: " + e);
+            }
+            name = null;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.hylly.mtk2garmin;
+
+/*
+ * Progress and health of a running conversion, registered as org.hylly.mtk2garmin:type=ConversionMetrics.
+ * JMX only introspects public interfaces, so unlike the rest of the converter this one is public.
+ */
+public interface ConversionMetricsMBean {
+    long getCellsTotal();
+
+    // Written, reused from the cell cache or skipped
+    long getCellsDone();
+
+    long getCellsCached();
+
+    // Cells that were not valid or failed to convert
+    long getCellsSkipped();
+
+    long getCellsRemaining();
+
+    // Cells submitted to the workers that have not been written yet
+    long getCellsInFlight();
+
+    long getFeatures();
+
+    long getNodes();
+
+    long getWays();
+
+    // Over the last cells written, up to now, so the rates drop when the run stalls
+    double getFeaturesPerSecond();
+
+    double getNodesPerSecond();
+
+    double getWaysPerSecond();
+
+    double getSecondsSinceLastCell();
+
+    int getLastStringTableSize();
+
+    int getMaxStringTableSize();
+
+    long getHeapUsedBytes();
+
+    long getHeapMaxBytes();
+
+    long getNonHeapUsedBytes();
+
+    long getDirectBufferBytes();
+
+    long getMappedBufferBytes();
+
+    // Resident set of the whole process, including GDAL, -1 when /proc is not available
+    long getResidentBytes();
+}
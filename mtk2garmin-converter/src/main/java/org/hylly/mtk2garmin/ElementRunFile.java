@@ -0,0 +1,90 @@
+package org.hylly.mtk2garmin;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+class ElementRunFile implements AutoCloseable {
+    private static final long MERGE_BUFFER_BUDGET = 64L << 20;
+    private static final int MIN_RUN_BUFFER = 4 << 10;
+    private static final int MAX_RUN_BUFFER = 64 << 10;
+
+    private final ElementType type;
+    private final File file;
+    private final OutputStream out;
+    private final LongArrayList runOffsets = new LongArrayList();
+    // Output shard of every run, runs of one shard are merged together
+    private final IntArrayList runShards = new IntArrayList();
+    private final IntArrayList runOrders = new IntArrayList();
+    private long length = 0;
+    private FileChannel channel;
+
+    ElementRunFile(ElementType type, File file) throws IOException {
+        this.type = type;
+        this.file = file;
+        this.out = new BufferedOutputStream(new FileOutputStream(file), 1 << 20);
+    }
+
+    void appendRun(byte[] run, int shard, int order) throws IOException {
+        runOffsets.add(length);
+        runShards.add(shard);
+        runOrders.add(order);
+        out.write(run);
+        length += run.length;
+    }
+
+    ElementType getType() {
+        return type;
+    }
+
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    // Once runs are opened no more can be appended
+    List<ElementRunInput> openRuns(int shard) throws IOException {
+        if (channel == null) {
+            out.close();
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+
+        int runCount = runOffsets.size();
+        int shardRunCount = 0;
+        for (int i = 0; i < runCount; i++) {
+            if (runShards.getInt(i) == shard) {
+                shardRunCount++;
+            }
+        }
+        int bufferSize = (int) Math.max(MIN_RUN_BUFFER, Math.min(MAX_RUN_BUFFER, MERGE_BUFFER_BUDGET / Math.max(1, shardRunCount)));
+
+        List<ElementRunInput> runs = new ArrayList<>(shardRunCount);
+        for (int i = 0; i < runCount; i++) {
+            if (runShards.getInt(i) == shard) {
+                long end = i + 1 < runCount ? runOffsets.getLong(i + 1) : length;
+                runs.add(new ElementRunInput(type, channel, runOffsets.getLong(i), end, i, runOrders.getInt(i), bufferSize));
+            }
+        }
+        return runs;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+        if (channel != null) {
+            channel.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete spill file " + file);
+        }
+    }
+}
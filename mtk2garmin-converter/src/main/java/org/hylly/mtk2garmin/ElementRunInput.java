@@ -0,0 +1,181 @@
+package org.hylly.mtk2garmin;
+
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+class ElementRunInput {
+    private final ElementType type;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final int runIndex;
+    private final int order;
+    private long position;
+    private final long end;
+
+    private String[] strings;
+    private long remainingRecords;
+    private double[] bounds;
+
+    long id = 0;
+    double lat;
+    double lon;
+    final ObjectArrayList<String> tagKeys = new ObjectArrayList<>();
+    final ObjectArrayList<String> tagValues = new ObjectArrayList<>();
+    final LongArrayList refs = new LongArrayList();
+    final ByteArrayList memberTypes = new ByteArrayList();
+    final ObjectArrayList<String> memberRoles = new ObjectArrayList<>();
+
+    ElementRunInput(ElementType type, FileChannel channel, long start, long end, int runIndex, int order, int bufferSize) throws IOException {
+        this.type = type;
+        this.channel = channel;
+        this.position = start;
+        this.end = end;
+        this.runIndex = runIndex;
+        this.order = order;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.buffer.limit(0);
+        if (type == ElementType.NODE) {
+            bounds = new double[]{readDouble(), readDouble(), readDouble(), readDouble()};
+        }
+        readStringTable();
+        this.remainingRecords = readVarLong();
+    }
+
+    int getRunIndex() {
+        return runIndex;
+    }
+
+    int getOrder() {
+        return order;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    // Bounds of the nodes of a node run as min lat, min lon, max lat, max lon
+    double[] getBounds() {
+        return bounds;
+    }
+
+    boolean next() throws IOException {
+        if (remainingRecords == 0) {
+            return false;
+        }
+        remainingRecords--;
+
+        id += readSignedVarLong();
+        if (type == ElementType.NODE) {
+            lat = readDouble();
+            lon = readDouble();
+        }
+        readTags();
+        if (type == ElementType.WAY) {
+            readRefs();
+        } else if (type == ElementType.RELATION) {
+            readMembers();
+        }
+        return true;
+    }
+
+    private void readStringTable() throws IOException {
+        int count = (int) readVarLong();
+        strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            byte[] utf8 = new byte[(int) readVarLong()];
+            for (int j = 0; j < utf8.length; j++) {
+                utf8[j] = readByte();
+            }
+            strings[i] = new String(utf8, StandardCharsets.UTF_8);
+        }
+    }
+
+    private void readTags() throws IOException {
+        tagKeys.clear();
+        tagValues.clear();
+        long count = readVarLong();
+        for (long i = 0; i < count; i++) {
+            tagKeys.add(strings[(int) readVarLong()]);
+            tagValues.add(strings[(int) readVarLong()]);
+        }
+    }
+
+    private void readRefs() throws IOException {
+        refs.clear();
+        long count = readVarLong();
+        long ref = 0;
+        for (long i = 0; i < count; i++) {
+            ref += readSignedVarLong();
+            refs.add(ref);
+        }
+    }
+
+    private void readMembers() throws IOException {
+        refs.clear();
+        memberTypes.clear();
+        memberRoles.clear();
+        long count = readVarLong();
+        long ref = 0;
+        for (long i = 0; i < count; i++) {
+            ref += readSignedVarLong();
+            refs.add(ref);
+            memberTypes.add(readByte());
+            memberRoles.add(strings[(int) readVarLong()]);
+        }
+    }
+
+    private double readDouble() throws IOException {
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits = (bits << 8) | (readByte() & 0xFF);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    private long readSignedVarLong() throws IOException {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private byte readByte() throws IOException {
+        if (!buffer.hasRemaining()) {
+            fill();
+        }
+        return buffer.get();
+    }
+
+    private void fill() throws IOException {
+        int length = (int) Math.min(buffer.capacity(), end - position);
+        if (length <= 0) {
+            throw new EOFException("Unexpected end of " + type + " run " + runIndex);
+        }
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of " + type + " spill file");
+            }
+        }
+        buffer.flip();
+        position += length;
+    }
+}
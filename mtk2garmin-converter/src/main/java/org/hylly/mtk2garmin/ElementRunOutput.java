@@ -0,0 +1,117 @@
+package org.hylly.mtk2garmin;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+class ElementRunOutput {
+    private final StringTable stringTable;
+    private final Int2IntOpenHashMap runStringIds = new Int2IntOpenHashMap();
+    private final IntArrayList runStrings = new IntArrayList();
+    private final ByteArrayOutputStream records = new ByteArrayOutputStream(1 << 16);
+    private int recordCount = 0;
+    private long lastId = 0;
+    private long lastRef = 0;
+    // Bounds of the node coordinates, node runs start with them so the PBF header can have them before the merge
+    private double minLat = Double.POSITIVE_INFINITY;
+    private double minLon = Double.POSITIVE_INFINITY;
+    private double maxLat = Double.NEGATIVE_INFINITY;
+    private double maxLon = Double.NEGATIVE_INFINITY;
+
+    ElementRunOutput(StringTable stringTable) {
+        this.stringTable = stringTable;
+        this.runStringIds.defaultReturnValue(-1);
+    }
+
+    void startRecord(long id) {
+        writeSignedVarLong(records, id - lastId);
+        lastId = id;
+        recordCount++;
+    }
+
+    void writeTags(CellElementStore store, int tagSet) {
+        int count = store.getTagCount(tagSet);
+        writeVarLong(records, count);
+        for (int i = 0; i < count; i++) {
+            writeString(store.getTagKey(tagSet, i));
+            writeString(store.getTagValue(tagSet, i));
+        }
+    }
+
+    void startRefs(int count) {
+        writeVarLong(records, count);
+        lastRef = 0;
+    }
+
+    void writeRef(long ref) {
+        writeSignedVarLong(records, ref - lastRef);
+        lastRef = ref;
+    }
+
+    void writeString(int stringId) {
+        int runId = runStringIds.get(stringId);
+        if (runId < 0) {
+            runId = runStrings.size();
+            runStringIds.put(stringId, runId);
+            runStrings.add(stringId);
+        }
+        writeVarLong(records, runId);
+    }
+
+    void writeCoordinates(double lat, double lon) {
+        minLat = Math.min(minLat, lat);
+        minLon = Math.min(minLon, lon);
+        maxLat = Math.max(maxLat, lat);
+        maxLon = Math.max(maxLon, lon);
+        writeDouble(records, lat);
+        writeDouble(records, lon);
+    }
+
+    void writeByte(int value) {
+        records.write(value);
+    }
+
+    boolean isEmpty() {
+        return recordCount == 0;
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream run = new ByteArrayOutputStream(records.size() + 16 * runStrings.size() + 48);
+        if (minLat <= maxLat) {
+            writeDouble(run, minLat);
+            writeDouble(run, minLon);
+            writeDouble(run, maxLat);
+            writeDouble(run, maxLon);
+        }
+        writeVarLong(run, runStrings.size());
+        for (int i = 0; i < runStrings.size(); i++) {
+            byte[] utf8 = stringTable.getStringById(runStrings.getInt(i)).getBytes(StandardCharsets.UTF_8);
+            writeVarLong(run, utf8.length);
+            run.writeBytes(utf8);
+        }
+        writeVarLong(run, recordCount);
+        run.writeBytes(records.toByteArray());
+        return run.toByteArray();
+    }
+
+    private static void writeDouble(ByteArrayOutputStream out, double value) {
+        long bits = Double.doubleToLongBits(value);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (bits >>> shift));
+        }
+    }
+
+    private static void writeSignedVarLong(ByteArrayOutputStream out, long value) {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
@@ -0,0 +1,7 @@
+package org.hylly.mtk2garmin;
+
+enum ElementType {
+    NODE,
+    WAY,
+    RELATION
+}
@@ -1,22 +1,50 @@
 package org.hylly.mtk2garmin;
 
-import java.util.concurrent.atomic.AtomicLong;
+/*
+ * Ids are derived from the data instead of handed out by counters, so the same input always gets the
+ * same ids, whatever the processing order, thread count or the cells reused from the cell cache.
+ *
+ * Way node ids come from the coordinate hash. The hash is a bijection of the 1 m pixel, and nodes of one
+ * pixel are already merged within a cell, so way nodes of different cells get the same id exactly when
+ * they are in the same place, which is what joins lines over cell edges. Such a shared node must not
+ * carry tags, see SingleCellConverter.assignFeatureIDs.
+ *
+ * Ids of points, i.e. nodes no way refers to, ways and relations are the base-36 value of the cell code
+ * shifted above a 24 bit cell-local index, so they are never shared between cells. Point ids start above
+ * the largest coordinate hash, so they never meet a way node id, whatever the cell code.
+ */
+final class FeatureIDProvider {
+    private static final long NODE_ID_BASE = 50000000000L;
+    private static final long POINT_ID_BASE = NODE_ID_BASE + GeomUtils.MAX_HASH + 1;
+    private static final long WAY_ID_BASE = 50000000000L;
+    private static final long RELATION_ID_BASE = 50000000000L;
+    private static final int LOCAL_ID_BITS = 24;
 
-class FeatureIDProvider {
-    private final AtomicLong nodeIDCounter = new AtomicLong(50000000000L);
-    private final AtomicLong wayIDCounter = new AtomicLong(50000000000L);
-    private final AtomicLong relationIDCounter = new AtomicLong(50000000000L);
+    private FeatureIDProvider() {
+    }
+
+    static long getNodeID(long phash) {
+        return NODE_ID_BASE + phash;
+    }
 
-    long getNodeID() {
-        return nodeIDCounter.getAndIncrement();
+    // Id of the first point of the cell, the others follow in cell order
+    static long getPointIDBase(String cell, long pointCount) {
+        return POINT_ID_BASE + cellIDBase(cell, pointCount);
     }
 
-    long getWayID() {
-        return wayIDCounter.getAndIncrement();
+    // Id of the first way of the cell, the others follow in cell order
+    static long getWayIDBase(String cell, long wayCount) {
+        return WAY_ID_BASE + cellIDBase(cell, wayCount);
     }
 
-    long getRelationID() {
-        return relationIDCounter.getAndIncrement();
+    static long getRelationIDBase(String cell, long relationCount) {
+        return RELATION_ID_BASE + cellIDBase(cell, relationCount);
     }
 
+    private static long cellIDBase(String cell, long count) {
+        if (count >= 1L << LOCAL_ID_BITS) {
+            throw new IllegalStateException("Cell " + cell + " has " + count + " elements of one type, ids allow " + (1L << LOCAL_ID_BITS));
+        }
+        return Long.parseLong(cell, 36) << LOCAL_ID_BITS;
+    }
 }
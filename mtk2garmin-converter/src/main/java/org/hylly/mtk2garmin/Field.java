@@ -4,11 +4,13 @@ class Field {
 	private final String fname;
 	private final int fieldType;
 	private final int fieldIndex;
+	private final int fieldId;
 
-	Field(String fname, int fieldType, int fieldIndex) {
+	Field(String fname, int fieldType, int fieldIndex, int fieldId) {
 		this.fname = fname;
 		this.fieldType = fieldType;
 		this.fieldIndex = fieldIndex;
+		this.fieldId = fieldId;
 	}
 
 	String getFieldName() {
@@ -23,4 +25,9 @@ class Field {
 		return fieldIndex;
 	}
 
+	// String table id of the field name
+	int getFieldId() {
+		return fieldId;
+	}
+
 }
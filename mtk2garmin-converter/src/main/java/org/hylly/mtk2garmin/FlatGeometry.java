@@ -0,0 +1,269 @@
+package org.hylly.mtk2garmin;
+
+import org.gdal.ogr.Geometry;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/*
+ * Plain Java copy of an OGR geometry. Points, line strings and rings keep their vertices as x/y pairs
+ * in one double array, the other types only have children. Geometries cross the JNI boundary once as
+ * WKB, after which all coordinate work happens on the arrays.
+ */
+class FlatGeometry {
+    static final int POINT = 1;
+    static final int LINESTRING = 2;
+    static final int POLYGON = 3;
+    static final int MULTIPOINT = 4;
+    static final int MULTILINESTRING = 5;
+    static final int MULTIPOLYGON = 6;
+    static final int GEOMETRYCOLLECTION = 7;
+    static final int LINEARRING = 101;
+
+    private static final double[] NO_COORDS = new double[0];
+
+    final int type;
+    double[] coords;
+    final List<FlatGeometry> children;
+
+    private FlatGeometry(int type, double[] coords, List<FlatGeometry> children) {
+        this.type = type;
+        this.coords = coords;
+        this.children = children;
+    }
+
+    // Points, line strings and rings from x/y pairs, an empty array is an empty geometry
+    static FlatGeometry of(int type, double[] coords) {
+        if (type == POINT && coords.length != 0 && coords.length != 2) {
+            throw new IllegalArgumentException("A point has one coordinate pair, got " + coords.length / 2);
+        }
+        return new FlatGeometry(type, coords, null);
+    }
+
+    static FlatGeometry collection(int type, List<FlatGeometry> children) {
+        return new FlatGeometry(type, null, children);
+    }
+
+    static FlatGeometry fromGeometry(Geometry geom) {
+        // The simplifier linearizes curves too, so doing it up front does not change the result
+        if (geom.HasCurveGeometry() != 0) {
+            Geometry linear = geom.GetLinearGeometry();
+            FlatGeometry flat = fromWkb(linear.ExportToWkb());
+            linear.delete();
+            return flat;
+        }
+        return fromWkb(geom.ExportToWkb());
+    }
+
+    static FlatGeometry fromWkb(byte[] wkb) {
+        return read(ByteBuffer.wrap(wkb));
+    }
+
+    private static FlatGeometry read(ByteBuffer in) {
+        in.order(in.get() == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        int wkbType = in.getInt();
+        boolean[] dims = {(wkbType & 0x80000000) != 0, (wkbType & 0x40000000) != 0};
+        wkbType &= 0x0FFFFFFF;
+        if (wkbType >= 1000) {
+            int variant = wkbType / 1000;
+            dims[0] |= variant == 1 || variant == 3;
+            dims[1] |= variant == 2 || variant == 3;
+            wkbType %= 1000;
+        }
+
+        switch (wkbType) {
+            case POINT -> {
+                double[] coords = readCoords(in, 1, dims);
+                // Empty points are written as NaN coordinates
+                return new FlatGeometry(POINT, Double.isNaN(coords[0]) ? NO_COORDS : coords, null);
+            }
+            case LINESTRING -> {
+                return new FlatGeometry(LINESTRING, readCoords(in, in.getInt(), dims), null);
+            }
+            case POLYGON, MULTIPOINT, MULTILINESTRING, MULTIPOLYGON, GEOMETRYCOLLECTION -> {
+                int count = in.getInt();
+                List<FlatGeometry> children = new ArrayList<>(count);
+                ByteOrder order = in.order();
+                for (int i = 0; i < count; i++) {
+                    children.add(wkbType == POLYGON ? readRing(in, dims) : read(in));
+                    in.order(order);
+                }
+                return new FlatGeometry(wkbType, null, children);
+            }
+            default -> throw new IllegalArgumentException("Unsupported WKB geometry type " + wkbType);
+        }
+    }
+
+    private static FlatGeometry readRing(ByteBuffer in, boolean[] dims) {
+        return new FlatGeometry(LINEARRING, readCoords(in, in.getInt(), dims), null);
+    }
+
+    private static double[] readCoords(ByteBuffer in, int count, boolean[] dims) {
+        double[] coords = new double[2 * count];
+        for (int i = 0; i < count; i++) {
+            coords[2 * i] = in.getDouble();
+            coords[2 * i + 1] = in.getDouble();
+            if (dims[0]) {
+                in.getDouble();
+            }
+            if (dims[1]) {
+                in.getDouble();
+            }
+        }
+        return coords;
+    }
+
+    byte[] toWkb() {
+        ByteBuffer out = ByteBuffer.allocate(wkbSize()).order(ByteOrder.LITTLE_ENDIAN);
+        write(out);
+        return out.array();
+    }
+
+    private int wkbSize() {
+        return switch (type) {
+            case POINT -> 5 + 16;
+            case LINESTRING -> 9 + 8 * coords.length;
+            case LINEARRING -> 4 + 8 * coords.length;
+            default -> {
+                int size = 9;
+                for (FlatGeometry child : children) {
+                    size += child.wkbSize();
+                }
+                yield size;
+            }
+        };
+    }
+
+    private void write(ByteBuffer out) {
+        if (type != LINEARRING) {
+            out.put((byte) 1);
+            out.putInt(type);
+        }
+        switch (type) {
+            case POINT -> {
+                out.putDouble(coords.length == 0 ? Double.NaN : coords[0]);
+                out.putDouble(coords.length == 0 ? Double.NaN : coords[1]);
+            }
+            case LINESTRING, LINEARRING -> {
+                out.putInt(coords.length / 2);
+                for (double c : coords) {
+                    out.putDouble(c);
+                }
+            }
+            default -> {
+                out.putInt(children.size());
+                for (FlatGeometry child : children) {
+                    child.write(out);
+                }
+            }
+        }
+    }
+
+    int getPointCount() {
+        return coords == null ? 0 : coords.length / 2;
+    }
+
+    double getX(int i) {
+        return coords[2 * i];
+    }
+
+    double getY(int i) {
+        return coords[2 * i + 1];
+    }
+
+    int getGeometryCount() {
+        return children == null ? 0 : children.size();
+    }
+
+    FlatGeometry getGeometry(int i) {
+        return children.get(i);
+    }
+
+    FlatGeometry copy() {
+        return mapCoords(double[]::clone);
+    }
+
+    // Copy with the same structure, where every coordinate array, in depth first order, is replaced by the mapped one
+    FlatGeometry mapCoords(UnaryOperator<double[]> mapper) {
+        if (coords != null) {
+            return new FlatGeometry(type, mapper.apply(coords), null);
+        }
+        List<FlatGeometry> mapped = new ArrayList<>(children.size());
+        for (FlatGeometry child : children) {
+            mapped.add(child.mapCoords(mapper));
+        }
+        return new FlatGeometry(type, null, mapped);
+    }
+
+    boolean sameAs(FlatGeometry other) {
+        if (type != other.type || getGeometryCount() != other.getGeometryCount()) {
+            return false;
+        }
+        if (coords != null) {
+            return Arrays.equals(coords, other.coords);
+        }
+        for (int i = 0; i < children.size(); i++) {
+            if (!children.get(i).sameAs(other.children.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean isEmpty() {
+        if (coords != null) {
+            return coords.length == 0;
+        }
+        for (FlatGeometry child : children) {
+            if (!child.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void forEachCoords(Consumer<double[]> consumer) {
+        if (coords != null) {
+            consumer.accept(coords);
+        } else {
+            children.forEach(child -> child.forEachCoords(consumer));
+        }
+    }
+
+    // Planar area in the units of the coordinates, following OGR: only rings and surfaces have an area
+    double area() {
+        return switch (type) {
+            case LINEARRING -> Math.abs(ringArea());
+            case POLYGON -> {
+                double area = 0;
+                for (int i = 0; i < children.size(); i++) {
+                    double ringArea = Math.abs(children.get(i).ringArea());
+                    area += i == 0 ? ringArea : -ringArea;
+                }
+                yield area;
+            }
+            case MULTIPOLYGON, GEOMETRYCOLLECTION -> {
+                double area = 0;
+                for (FlatGeometry child : children) {
+                    area += child.area();
+                }
+                yield area;
+            }
+            default -> 0;
+        };
+    }
+
+    private double ringArea() {
+        double sum = 0;
+        int points = getPointCount();
+        for (int i = 0; i < points - 1; i++) {
+            sum += getX(i) * getY(i + 1) - getX(i + 1) * getY(i);
+        }
+        return sum / 2;
+    }
+}
@@ -1,9 +0,0 @@
-package org.hylly.mtk2garmin;
-
-import java.util.ArrayList;
-
-class GeomHandlerResult {
-    final ArrayList<LightNode> lightNodes = new ArrayList<>();
-    final ArrayList<LightWay> lightWays = new ArrayList<>();
-    final ArrayList<LightRelation> lightRelations = new ArrayList<>();
-}
\ No newline at end of file
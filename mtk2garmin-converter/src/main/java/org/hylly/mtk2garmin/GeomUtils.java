@@ -1,28 +1,37 @@
 package org.hylly.mtk2garmin;
 
-import org.gdal.ogr.GeomTransformer;
 import org.gdal.osr.CoordinateTransformation;
 import org.gdal.osr.SpatialReference;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
 import static org.gdal.osr.osrConstants.OAMS_TRADITIONAL_GIS_ORDER;
 
 class GeomUtils {
-    private final double COORD_DELTA_X = 62000.0 - 6e3;
-    private final double COORD_DELTA_Y = 6594000.0;
-
-    private final SpatialReference sphericmercref = new SpatialReference();
-    public final GeomTransformer spherictowgs;
-
-    GeomUtils() {
-        SpatialReference wgs84ref = new SpatialReference();
-        wgs84ref.SetWellKnownGeogCS("WGS84");
-        wgs84ref.SetAxisMappingStrategy(OAMS_TRADITIONAL_GIS_ORDER);
-
-        this.sphericmercref.ImportFromProj4("+proj=merc +a=6378137 +b=6378137 +lat_ts=0 +lon_0=0 +x_0=0 +y_0=0 +k=1 +units=m +nadgrids=@null +wktext +no_defs +type=crs");
-        this.sphericmercref.SetAxisMappingStrategy(OAMS_TRADITIONAL_GIS_ORDER);
-
-        this.spherictowgs = new GeomTransformer(new CoordinateTransformation(sphericmercref, wgs84ref));
-
+    static final double COORD_DELTA_X = 62000.0 - 6e3;
+    static final double COORD_DELTA_Y = 6594000.0;
+    // Far corner of the hashable area in mercator metres, east and north of Finland with a wide margin
+    static final double COORD_MAX_X = 4500000.0;
+    static final double COORD_MAX_Y = 12500000.0;
+    private static final double COORD_ACC = 2;
+    // The hash grows towards the far corner, so no coordinates of the area hash higher
+    static final long MAX_HASH = calcHash(hashAxis(COORD_MAX_X - COORD_DELTA_X), hashAxis(COORD_MAX_Y - COORD_DELTA_Y));
+
+    private SpatialReference sphericmercref;
+
+    // Empty for ETRS-TM35FIN, which is projected in Java, otherwise the GDAL transformation to use
+    private final Map<String, Optional<CoordinateTransformation>> toSphericMercator = new HashMap<>();
+
+    // GDAL is only touched once a source system other than ETRS-TM35FIN shows up
+    private SpatialReference getSphericMercatorReference() {
+        if (sphericmercref == null) {
+            sphericmercref = new SpatialReference();
+            sphericmercref.ImportFromProj4("+proj=merc +a=6378137 +b=6378137 +lat_ts=0 +lon_0=0 +x_0=0 +y_0=0 +k=1 +units=m +nadgrids=@null +wktext +no_defs +type=crs");
+            sphericmercref.SetAxisMappingStrategy(OAMS_TRADITIONAL_GIS_ORDER);
+        }
+        return sphericmercref;
     }
 
     int xy2grid(double x, double y) {
@@ -41,12 +50,20 @@ class GeomUtils {
     }
 
     long hashCoords(double x, double y) {
-        double COORD_ACC = 2;
-        return calcHash((long) ((int) (x - COORD_DELTA_X) * COORD_ACC), (long) ((int) (y - COORD_DELTA_Y) * COORD_ACC));
+        // The hash is the node id, so it must stay a bijection, which the pairing only is for non-negative values,
+        // and below the point ids, which start above MAX_HASH
+        if (x < COORD_DELTA_X || y < COORD_DELTA_Y || x > COORD_MAX_X || y > COORD_MAX_Y) {
+            throw new IllegalArgumentException("Coordinates " + x + ", " + y + " are outside the hashable area");
+        }
+        return calcHash(hashAxis(x - COORD_DELTA_X), hashAxis(y - COORD_DELTA_Y));
 
     }
 
-    private long calcHash(long a, long b) {
+    private static long hashAxis(double offset) {
+        return (long) ((int) offset * COORD_ACC);
+    }
+
+    private static long calcHash(long a, long b) {
         if (a >= b) {
             return a * a + a + b;
         } else {
@@ -55,18 +72,72 @@ class GeomUtils {
 
     }
 
-    boolean pointInside(double[] searchBBox, double[] search) {
-        return search[0] >= searchBBox[0] && search[0] <= searchBBox[1] &&
-                search[1] >= searchBBox[2] && search[1] <= searchBBox[3];
+    void transformToSphericMercator(FlatGeometry geom, String proj4str) {
+        Optional<CoordinateTransformation> transform = toSphericMercator.computeIfAbsent(proj4str, p -> {
+            if (isTM35FIN(p)) {
+                return Optional.empty();
+            }
+            SpatialReference from = new SpatialReference();
+            from.ImportFromProj4(p);
+            from.SetAxisMappingStrategy(OAMS_TRADITIONAL_GIS_ORDER);
+            return Optional.of(new CoordinateTransformation(from, getSphericMercatorReference()));
+        });
+
+        if (transform.isEmpty()) {
+            double[] lonLat = new double[2];
+            geom.forEachCoords(coords -> {
+                for (int i = 0; i < coords.length; i += 2) {
+                    Projections.tm35ToGeographic(coords[i], coords[i + 1], lonLat);
+                    Projections.geographicToMercator(lonLat[0], lonLat[1], lonLat);
+                    coords[i] = lonLat[0];
+                    coords[i + 1] = lonLat[1];
+                }
+            });
+            return;
+        }
+
+        // Other systems go through GDAL, but with a single call for all the vertices of the geometry
+        int[] count = {0};
+        geom.forEachCoords(coords -> count[0] += coords.length / 2);
+        double[][] points = new double[count[0]][2];
+        int[] next = {0};
+        geom.forEachCoords(coords -> {
+            for (int i = 0; i < coords.length; i += 2) {
+                points[next[0]][0] = coords[i];
+                points[next[0]++][1] = coords[i + 1];
+            }
+        });
+        transform.get().TransformPoints(points);
+        next[0] = 0;
+        geom.forEachCoords(coords -> {
+            for (int i = 0; i < coords.length; i += 2) {
+                coords[i] = points[next[0]][0];
+                coords[i + 1] = points[next[0]++][1];
+            }
+        });
     }
 
-    public GeomTransformer getTransformationToSphereMercator(String proj4str) {
-        SpatialReference from = new SpatialReference();
-        from.ImportFromProj4(proj4str);
-        from.SetAxisMappingStrategy(OAMS_TRADITIONAL_GIS_ORDER);
+    static boolean isTM35FIN(String proj4str) {
+        Map<String, String> params = new HashMap<>();
+        for (String token : proj4str.trim().split("\\s+")) {
+            String[] kv = token.replaceFirst("^\\+", "").split("=", 2);
+            params.put(kv[0], kv.length > 1 ? kv[1] : "");
+        }
+
+        boolean projection = "utm".equals(params.get("proj")) && "35".equals(params.get("zone")) && !params.containsKey("south")
+                || "tmerc".equals(params.get("proj")) && isNumber(params.get("lon_0"), 27) && isNumber(params.get("x_0"), 500000)
+                && isNumber(params.getOrDefault("k", params.getOrDefault("k_0", "1")), 0.9996)
+                && isNumber(params.getOrDefault("lat_0", "0"), 0) && isNumber(params.getOrDefault("y_0", "0"), 0);
+        boolean noDatumShift = !params.containsKey("towgs84") || params.get("towgs84").matches("[0.,]*");
 
-        CoordinateTransformation transform = new CoordinateTransformation(from, sphericmercref);
+        return projection && "GRS80".equals(params.get("ellps")) && noDatumShift && "m".equals(params.getOrDefault("units", "m"));
+    }
 
-        return new GeomTransformer(transform);
+    private static boolean isNumber(String value, double expected) {
+        try {
+            return value != null && Double.parseDouble(value) == expected;
+        } catch (NumberFormatException e) {
+            return false;
+        }
     }
 }
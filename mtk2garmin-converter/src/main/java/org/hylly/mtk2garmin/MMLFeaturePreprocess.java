@@ -1,8 +1,28 @@
 package org.hylly.mtk2garmin;
 
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
 class MMLFeaturePreprocess implements FeaturePreprocessI {
+    private static final int[] EXCLUDED_CLASSES = {30211, 30212, 42200, 42111, 42112, 42110, 42151, 42152, 42111, 42112, 42110, 42151, 42152, 42150, 42121, 42122, 42120, 42131, 42132, 42130, 42161, 42162, 42160, 42200, 42141, 42142, 42140};
+
+    private final IntOpenHashSet excludedClasses = new IntOpenHashSet(EXCLUDED_CLASSES);
+
     public String getAttributeFilterString() {
-        return "kohdeluokka NOT IN (30211,30212,42200,42111,42112,42110,42151,42152,42111,42112,42110,42151,42152,42150,42121,42122,42120,42131,42132,42130,42161,42162,42160,42200,42141,42142,42140)";
+        return Arrays.stream(EXCLUDED_CLASSES).mapToObj(Integer::toString).collect(Collectors.joining(",", "kohdeluokka NOT IN (", ")"));
     }
 
+    // The attribute filter for readers that do not go through OGR. Like in SQL, a missing class does not pass.
+    boolean isIncluded(String kohdeluokka) {
+        if (kohdeluokka == null || kohdeluokka.isEmpty()) {
+            return false;
+        }
+        try {
+            return !excludedClasses.contains(Integer.parseInt(kohdeluokka.trim()));
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
 }
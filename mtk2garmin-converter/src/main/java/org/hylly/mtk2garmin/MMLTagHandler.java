@@ -1,8 +1,10 @@
 package org.hylly.mtk2garmin;
 
 import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap.Entry;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMaps;
 import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
 
 import java.util.Objects;
@@ -31,6 +33,10 @@ class MMLTagHandler implements TagHandlerI {
 
     private final StringTable stringtable;
 
+    // String ids of the formatted ele values by the height in millimetres, the same few thousand heights repeat
+    // over every contour line of a cell
+    private final Int2IntOpenHashMap eleValueIds = new Int2IntOpenHashMap();
+
 
     MMLTagHandler(StringTable stringtable) {
         wantedFields = new ObjectOpenHashSet<>(asList("nimi_ruotsi", "nimi_suomi", "kohdeluokka", "yksisuuntaisuus", "tienumero", "korkeusarvo", "tasosijainti", "syvyysarvo", "valmiusaste", "paallyste", "teksti", "teksti_kieli"));
@@ -59,6 +65,7 @@ class MMLTagHandler implements TagHandlerI {
         apukayra = stringtable.getStringId("apukayra");
 
         this.stringtable = stringtable;
+        this.eleValueIds.defaultReturnValue(-1);
 
     }
 
@@ -73,7 +80,7 @@ class MMLTagHandler implements TagHandlerI {
             return;
         }
 
-        for (Entry<String> k : fields.int2ObjectEntrySet()) {
+        for (Entry<String> k : Int2ObjectMaps.fastIterable(fields)) {
 
             int kk = k.getIntKey();
             String val = k.getValue();
@@ -94,9 +101,8 @@ class MMLTagHandler implements TagHandlerI {
                     }
                 }
 
-                Double korarvo =  korint / 1000.0;
-                kk = ele;
-                val = String.format("%.1f", korarvo);
+                tags.put(ele, eleValueId(korint));
+                continue;
             }
 
             if (kk == nimisuomi || kk == teksti) {
@@ -141,4 +147,13 @@ class MMLTagHandler implements TagHandlerI {
 
     }
 
+    private int eleValueId(int millimetres) {
+        int id = eleValueIds.get(millimetres);
+        if (id < 0) {
+            id = stringtable.getStringId(String.format("%.1f", millimetres / 1000.0));
+            eleValueIds.put(millimetres, id);
+        }
+        return id;
+    }
+
 }
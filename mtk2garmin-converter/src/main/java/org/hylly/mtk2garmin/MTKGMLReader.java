@@ -0,0 +1,364 @@
+package org.hylly.mtk2garmin;
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/*
+ * Reads MTK cells without GDAL. The GML is pulled with StAX in one pass and every feature is handed over
+ * as it is read, with the same layer name, fields and geometry the GML driver gives: features are the
+ * children of the feature collections below the root and named after their element, fields are the
+ * wanted text children, attributes of those become <field>_<attribute>, and the geometry is the first
+ * property holding GML geometries. MTK wraps most coordinates in geometries of its own schema, Piste,
+ * Murtoviiva and Alue, which are read as the GML point, line string and polygon they are derived from.
+ * Coordinates go straight into arrays, heights are dropped.
+ */
+class MTKGMLReader {
+    // ETRS-TM35FIN, the only system of MTK GML
+    static final String PROJ4 = "+proj=utm +zone=35 +ellps=GRS80 +units=m +no_defs";
+
+    private static final Set<String> GEOMETRIES = Set.of(
+            "Point", "LineString", "LinearRing", "Curve", "Polygon", "Surface",
+            "MultiPoint", "MultiCurve", "MultiLineString", "MultiSurface", "MultiPolygon", "MultiGeometry");
+    // Geometries of the MTK schema and the GML geometries they have the content of
+    private static final Map<String, String> MTK_GEOMETRIES = Map.of(
+            "Piste", "Point", "Murtoviiva", "LineString", "Alue", "Polygon");
+    private static final int FEATURE_DEPTH = 3;
+
+    interface FeatureHandler {
+        void handle(String layer, Int2ObjectOpenHashMap<String> fields, FlatGeometry geometry);
+    }
+
+    private final StringTable stringtable;
+    private final ObjectOpenHashSet<String> wantedFields;
+    private final MMLFeaturePreprocess featurePreprocess;
+    private final int kohdeluokka;
+    private final XMLInputFactory factory;
+
+    private long featureCount = 0;
+    private long filteredCount = 0;
+
+    MTKGMLReader(StringTable stringtable, ObjectOpenHashSet<String> wantedFields, MMLFeaturePreprocess featurePreprocess) {
+        this.stringtable = stringtable;
+        this.wantedFields = wantedFields;
+        this.featurePreprocess = featurePreprocess;
+        this.kohdeluokka = stringtable.getStringId("kohdeluokka");
+        this.factory = XMLInputFactory.newFactory();
+        this.factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        this.factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        this.factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    // Reads every GML file of the zip, in name order
+    void read(File zip, FeatureHandler handler) throws IOException {
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            for (ZipEntry entry : gmlEntries(zipFile)) {
+                try (InputStream in = new BufferedInputStream(zipFile.getInputStream(entry), 1 << 16)) {
+                    read(in, handler);
+                } catch (XMLStreamException e) {
+                    throw new IOException("Reading " + zip + "/" + entry.getName() + " failed", e);
+                }
+            }
+        }
+    }
+
+    // Same for GML files already read out of the zip, e.g. by the prefetcher
+    void read(File zip, List<byte[]> gmlFiles, FeatureHandler handler) throws IOException {
+        for (byte[] gml : gmlFiles) {
+            try {
+                read(new ByteArrayInputStream(gml), handler);
+            } catch (XMLStreamException e) {
+                throw new IOException("Reading " + zip + " failed", e);
+            }
+        }
+    }
+
+    static List<? extends ZipEntry> gmlEntries(ZipFile zipFile) {
+        return zipFile.stream()
+                .filter(e -> !e.isDirectory())
+                .filter(e -> e.getName().toLowerCase().endsWith(".xml") || e.getName().toLowerCase().endsWith(".gml"))
+                .sorted(Comparator.comparing(ZipEntry::getName))
+                .toList();
+    }
+
+    void read(InputStream input, FeatureHandler handler) throws XMLStreamException {
+        XMLStreamReader in = factory.createXMLStreamReader(input);
+        try {
+            int depth = 0;
+            while (in.hasNext()) {
+                int event = in.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    // gml:boundedBy and the like are not feature collections
+                    if (depth == FEATURE_DEPTH - 1 && isGML(in)) {
+                        skipElement(in);
+                        depth--;
+                    } else if (depth == FEATURE_DEPTH) {
+                        readFeature(in, handler);
+                        depth--;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    long getFeatureCount() {
+        return featureCount;
+    }
+
+    long getFilteredCount() {
+        return filteredCount;
+    }
+
+    private void readFeature(XMLStreamReader in, FeatureHandler handler) throws XMLStreamException {
+        String layer = in.getLocalName();
+        Int2ObjectOpenHashMap<String> fields = new Int2ObjectOpenHashMap<>();
+        List<FlatGeometry> geometries = null;
+
+        while (nextChild(in)) {
+            String property = in.getLocalName();
+            for (int i = 0; i < in.getAttributeCount(); i++) {
+                putField(fields, property + "_" + in.getAttributeLocalName(i), in.getAttributeValue(i));
+            }
+
+            StringBuilder text = new StringBuilder();
+            List<FlatGeometry> propertyGeometries = new ArrayList<>();
+            boolean nested = false;
+            for (int event = in.next(); event != XMLStreamConstants.END_ELEMENT; event = in.next()) {
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    nested = true;
+                    readGeometries(in, propertyGeometries);
+                } else if (!nested && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA)) {
+                    text.append(in.getText());
+                }
+            }
+
+            if (!nested) {
+                putField(fields, property, text.toString());
+            } else if (geometries == null && !propertyGeometries.isEmpty()) {
+                geometries = propertyGeometries;
+            }
+        }
+
+        featureCount++;
+        if (!featurePreprocess.isIncluded(fields.get(kohdeluokka))) {
+            filteredCount++;
+            return;
+        }
+        if (geometries == null) {
+            return;
+        }
+        handler.handle(layer, fields, geometries.size() == 1 ? geometries.get(0) : collect(geometries, FlatGeometry.GEOMETRYCOLLECTION));
+    }
+
+    private void putField(Int2ObjectOpenHashMap<String> fields, String name, String value) {
+        // Repeated fields keep the first value
+        if (wantedFields.contains(name)) {
+            fields.putIfAbsent(stringtable.getStringId(name), value.intern());
+        }
+    }
+
+    // Collects the GML geometries of the element the reader is on, which may be wrapped in other elements
+    private void readGeometries(XMLStreamReader in, List<FlatGeometry> geometries) throws XMLStreamException {
+        if (isGML(in) ? GEOMETRIES.contains(in.getLocalName()) : MTK_GEOMETRIES.containsKey(in.getLocalName())) {
+            geometries.add(readGeometry(in, 2));
+            return;
+        }
+        while (nextChild(in)) {
+            readGeometries(in, geometries);
+        }
+    }
+
+    private FlatGeometry readGeometry(XMLStreamReader in, int inheritedDimension) throws XMLStreamException {
+        String type = isGML(in) ? in.getLocalName() : MTK_GEOMETRIES.getOrDefault(in.getLocalName(), in.getLocalName());
+        String srsName = in.getAttributeValue(null, "srsName");
+        if (srsName != null && !srsName.endsWith("3067")) {
+            throw new XMLStreamException("Unsupported coordinate system " + srsName + ", only ETRS-TM35FIN is read without GDAL", in.getLocation());
+        }
+        int dimension = srsDimension(in, inheritedDimension);
+
+        return switch (type) {
+            case "Point" -> FlatGeometry.of(FlatGeometry.POINT, readCoords(in, dimension));
+            case "LineString" -> FlatGeometry.of(FlatGeometry.LINESTRING, readCoords(in, dimension));
+            case "LinearRing" -> FlatGeometry.of(FlatGeometry.LINEARRING, readCoords(in, dimension));
+            case "Curve" -> FlatGeometry.of(FlatGeometry.LINESTRING, readCurve(in, dimension));
+            case "Polygon", "PolygonPatch" -> readPolygon(in, dimension);
+            case "Surface" -> {
+                List<FlatGeometry> patches = readMembers(in, dimension);
+                yield patches.size() == 1 ? patches.get(0) : collect(patches, FlatGeometry.MULTIPOLYGON);
+            }
+            case "MultiPoint" -> collect(readMembers(in, dimension), FlatGeometry.MULTIPOINT);
+            case "MultiCurve", "MultiLineString" -> collect(readMembers(in, dimension), FlatGeometry.MULTILINESTRING);
+            case "MultiSurface", "MultiPolygon" -> collect(readMembers(in, dimension), FlatGeometry.MULTIPOLYGON);
+            case "MultiGeometry" -> collect(readMembers(in, dimension), FlatGeometry.GEOMETRYCOLLECTION);
+            default -> throw new XMLStreamException("Unsupported GML geometry " + type + ", use gmlReader=gdal", in.getLocation());
+        };
+    }
+
+    private double[] readCoords(XMLStreamReader in, int dimension) throws XMLStreamException {
+        DoubleArrayList coords = new DoubleArrayList();
+        while (nextChild(in)) {
+            switch (in.getLocalName()) {
+                case "pos", "posList" -> parsePositions(in, srsDimension(in, dimension), coords);
+                case "coordinates" -> parseCoordinates(in.getElementText(), coords);
+                default -> throw new XMLStreamException("Unsupported GML coordinates " + in.getLocalName(), in.getLocation());
+            }
+        }
+        return coords.toDoubleArray();
+    }
+
+    // The segments of a curve joined into one line, a shared end point is kept once
+    private double[] readCurve(XMLStreamReader in, int dimension) throws XMLStreamException {
+        DoubleArrayList coords = new DoubleArrayList();
+        while (nextChild(in)) {
+            while (nextChild(in)) {
+                if (!"LineStringSegment".equals(in.getLocalName())) {
+                    throw new XMLStreamException("Unsupported GML curve segment " + in.getLocalName() + ", use gmlReader=gdal", in.getLocation());
+                }
+                double[] segment = readCoords(in, srsDimension(in, dimension));
+                int n = coords.size();
+                boolean joined = n >= 2 && segment.length >= 2 && coords.getDouble(n - 2) == segment[0] && coords.getDouble(n - 1) == segment[1];
+                coords.addElements(n, segment, joined ? 2 : 0, segment.length - (joined ? 2 : 0));
+            }
+        }
+        return coords.toDoubleArray();
+    }
+
+    private FlatGeometry readPolygon(XMLStreamReader in, int dimension) throws XMLStreamException {
+        List<FlatGeometry> rings = new ArrayList<>();
+        while (nextChild(in)) {
+            // exterior or interior, each with one ring
+            while (nextChild(in)) {
+                FlatGeometry ring = readGeometry(in, dimension);
+                if (ring.type != FlatGeometry.LINEARRING) {
+                    throw new XMLStreamException("Unsupported GML polygon boundary, use gmlReader=gdal", in.getLocation());
+                }
+                rings.add(ring);
+            }
+        }
+        return FlatGeometry.collection(FlatGeometry.POLYGON, rings);
+    }
+
+    // Geometries of the member properties of a collection, or of the patches of a surface
+    private List<FlatGeometry> readMembers(XMLStreamReader in, int dimension) throws XMLStreamException {
+        List<FlatGeometry> members = new ArrayList<>();
+        while (nextChild(in)) {
+            while (nextChild(in)) {
+                members.add(readGeometry(in, dimension));
+            }
+        }
+        return members;
+    }
+
+    // A multi geometry of the given type when the members fit it, a geometry collection otherwise
+    private static FlatGeometry collect(List<FlatGeometry> members, int type) {
+        int memberType = switch (type) {
+            case FlatGeometry.MULTIPOINT -> FlatGeometry.POINT;
+            case FlatGeometry.MULTILINESTRING -> FlatGeometry.LINESTRING;
+            case FlatGeometry.MULTIPOLYGON -> FlatGeometry.POLYGON;
+            default -> members.isEmpty() ? -1 : members.get(0).type;
+        };
+        boolean uniform = members.stream().allMatch(m -> m.type == memberType);
+        if (type == FlatGeometry.GEOMETRYCOLLECTION && uniform) {
+            type = switch (memberType) {
+                case FlatGeometry.POINT -> FlatGeometry.MULTIPOINT;
+                case FlatGeometry.LINESTRING -> FlatGeometry.MULTILINESTRING;
+                case FlatGeometry.POLYGON -> FlatGeometry.MULTIPOLYGON;
+                default -> FlatGeometry.GEOMETRYCOLLECTION;
+            };
+        } else if (!uniform) {
+            type = FlatGeometry.GEOMETRYCOLLECTION;
+        }
+        return FlatGeometry.collection(type, members);
+    }
+
+    private static int srsDimension(XMLStreamReader in, int inherited) {
+        String dimension = in.getAttributeValue(null, "srsDimension");
+        return dimension != null ? Integer.parseInt(dimension.trim()) : inherited;
+    }
+
+    // Whitespace separated ordinates, of which the first two of every position are kept
+    private static void parsePositions(XMLStreamReader in, int dimension, DoubleArrayList coords) throws XMLStreamException {
+        String text = in.getElementText();
+        int ordinate = 0;
+        int i = 0;
+        int length = text.length();
+        while (i < length) {
+            while (i < length && Character.isWhitespace(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && !Character.isWhitespace(text.charAt(i))) {
+                i++;
+            }
+            if (start == i) {
+                break;
+            }
+            if (ordinate < 2) {
+                coords.add(Double.parseDouble(text.substring(start, i)));
+            }
+            ordinate = (ordinate + 1) % dimension;
+        }
+        if (ordinate != 0) {
+            throw new XMLStreamException("Position list does not match dimension " + dimension, in.getLocation());
+        }
+    }
+
+    // GML 2 coordinates, tuples separated by whitespace and ordinates by commas
+    private static void parseCoordinates(String text, DoubleArrayList coords) {
+        for (String tuple : text.trim().split("\\s+")) {
+            if (tuple.isEmpty()) {
+                continue;
+            }
+            String[] ordinates = tuple.split(",");
+            coords.add(Double.parseDouble(ordinates[0]));
+            coords.add(Double.parseDouble(ordinates[1]));
+        }
+    }
+
+    private static boolean isGML(XMLStreamReader in) {
+        String namespace = in.getNamespaceURI();
+        return namespace != null && namespace.startsWith("http://www.opengis.net/gml");
+    }
+
+    private static void skipElement(XMLStreamReader in) throws XMLStreamException {
+        while (nextChild(in)) {
+            skipElement(in);
+        }
+    }
+
+    // Moves to the next child element of the current element, false when its end is reached instead
+    private static boolean nextChild(XMLStreamReader in) throws XMLStreamException {
+        while (in.hasNext()) {
+            int event = in.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            }
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return false;
+            }
+        }
+        return false;
+    }
+}
@@ -12,6 +12,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
@@ -22,17 +23,28 @@ class MTKToGarminConverter {
     private final Logger logger = Logger.getLogger(MTKToGarminConverter.class.getName());
 
     private final HashMap<String, double[]> gridExtents = new HashMap<>();
-    private final NodeCache nodeCache;
 
-    private final FeatureIDProvider featureIDProvider = new FeatureIDProvider();
+    private final Optional<CellCache> cellCache;
+    private final Optional<TimingReport> timingReport;
+    private final ConversionMetrics metrics;
+    private final OutputSharding outputSharding;
+    private final TagRules tagRules;
+    private final CellScheduler cellScheduler;
+    private final Optional<CellPrefetcher> cellPrefetcher;
+    // Shared by all cells, null when the features of a cell are handled on its own thread
+    private final ForkJoinPool featurePool;
 
     private final Config conf;
 
     private MMLFeaturePreprocess featurePreprocessMML;
     private ShapeFeaturePreprocess shapePreprocessor;
     private final GeomUtils geomUtils;
-    private CachedAdditionalDataSources cachedDatasources;
+    private final ThreadLocal<GeomUtils> workerGeomUtils = ThreadLocal.withInitial(GeomUtils::new);
+    private AdditionalDataIndex additionalData;
 
+    // Result of a worker: either a converted cell or, in incremental mode, the cached entry of an unchanged one
+    private record CellResult(SingleCellConverter converter, String fingerprint, CellCache.Entry cached) {
+    }
 
     void doConvert() throws IOException {
         File mtkDirectory = new File(conf.getString("maastotietokanta"));
@@ -79,91 +91,151 @@ class MTKToGarminConverter {
 
                 ));
 
-        Map<String, Optional<String>> areaRelations = getRelatedAreas(grid2448, areas);
-        logger.info("Area relations resolved");
-
-        initializeCachedDatasources();
+        initializeAdditionalData();
 
         String areaFilter = conf.hasPath("areaFilter") ? conf.getString("areaFilter") : null;
 
-        OSMPBFWriter osmpbWriter = new OSMPBFWriter(outdir.resolve("all_direct.osm.pbf").toFile());
+        int threads = conf.hasPath("threads") ? conf.getInt("threads") : 1;
+        logger.info("Converting cells with " + threads + " worker threads");
+
+        // 0 writes uncompressed blocks, which is faster when the output is only read once by splitter
+        int compressionLevel = conf.hasPath("pbfCompressionLevel") ? conf.getInt("pbfCompressionLevel") : PBFBlockEncoder.DEFAULT_COMPRESSION_LEVEL;
+        OSMPBFWriter osmpbWriter = new OSMPBFWriter(outdir.resolve("all_direct.osm.pbf").toFile(), compressionLevel, threads);
         osmpbWriter.startWritingOSMPBF();
-        StringTable stringTable = new StringTable();
 
-        areas
+        List<Map.Entry<String, List<File>>> convertedAreas = areas
                 .entrySet()
                 .stream()
                 .sorted(Comparator.comparing(Map.Entry::getKey))
                 .filter(e -> grid2448.containsKey(e.getKey()))
                 .filter(e -> areaFilter == null || e.getKey().startsWith(areaFilter))
                 .filter(e -> !e.getKey().startsWith("J"))
-                .forEach(areaEntry -> {
-                    String areaKey = areaEntry.getKey();
-                    List<File> areaCells = areaEntry.getValue();
-                    double[] areaBBox = grid2448.get(areaKey);
-                    int areaGrid = geomUtils.xy2grid(areaBBox[0], areaBBox[1]);
-                    nodeCache.ensureGrid(areaGrid);
-
-                    areaCells.forEach(cellFile -> {
-                        logger.info("Processing file: " + cellFile.toString() + " in thread [" + Thread.currentThread().getId() + "]");
-                        try {
-                            SingleCellConverter cellConverter = new SingleCellConverter(cellFile, osmpbWriter, stringTable, conf, gridExtents, featurePreprocessMML, shapePreprocessor, geomUtils, featureIDProvider, cachedDatasources, nodeCache);
-                            if (cellConverter.isValidCell()) {
-                                cellConverter.doConvert();
-                            }
-                        } catch (IOException e) {
-                            logger.severe("Converting file " + cellFile + " failed. Exception: " + e.toString());
-                            e.printStackTrace();
-                        }
-                    });
-
+                .toList();
+        metrics.setCellsTotal(convertedAreas.stream().mapToLong(e -> e.getValue().size()).sum());
+
+        List<int[]> areaOrders = new ArrayList<>();
+        List<File> validCells = new ArrayList<>();
+        for (Map.Entry<String, List<File>> areaEntry : convertedAreas) {
+            int[] areaOrder = cellScheduler.order(areaEntry.getValue());
+            areaOrders.add(areaOrder);
+            for (int i : areaOrder) {
+                File cellFile = areaEntry.getValue().get(i);
+                if (gridExtents.containsKey(SingleCellConverter.cellOf(cellFile))) {
+                    validCells.add(cellFile);
+                }
+            }
+        }
+        // In submission order, and only the cells that get converted take their prefetched inputs
+        cellPrefetcher.ifPresent(prefetcher -> prefetcher.prefetch(validCells));
+        metrics.register();
+        Optional<MetricsEndpoint> metricsEndpoint = MetricsEndpoint.fromConfig(conf, metrics);
+
+        // Cells are converted concurrently, but id assignment and writing happen in submission order
+        // on this thread, so the output does not depend on the number of threads.
+        try (OrderedTaskPipeline<CellResult> pipeline = new OrderedTaskPipeline<>(threads, 2 * threads)) {
+            int firstOrder = 0;
+            for (int area = 0; area < convertedAreas.size(); area++) {
+                List<File> areaCells = convertedAreas.get(area).getValue();
+
+                // Cells are submitted in the order of the scheduler, but their runs are merged in name order
+                for (int i : areaOrders.get(area)) {
+                    File cellFile = areaCells.get(i);
+                    int order = firstOrder + i;
+                    metrics.cellSubmitted();
+                    pipeline.submit(
+                            () -> convertCell(cellFile),
+                            result -> {
+                                try {
+                                    commitCell(result, order, osmpbWriter);
+                                } catch (IOException e) {
+                                    throw new RuntimeException(e);
+                                }
+                            });
+                }
+                firstOrder += areaCells.size();
+
+                pipeline.runInOrder(() -> {
                     try {
                         osmpbWriter.flush();
-                        stringTable.clear();
                     } catch (IOException e) {
                         throw new RuntimeException(e);
                     }
-
-                    Optional<String> relatedArea = areaRelations.get(areaKey);
-                    if (relatedArea != null && relatedArea.isPresent()) {
-                        double[] relatedBBox = grid2448.get(relatedArea.get());
-                        int relatedGrid = geomUtils.xy2grid(relatedBBox[0], relatedBBox[1]);
-                        nodeCache.removeGrid(relatedGrid);
-                    }
                 });
+            }
+            pipeline.drain();
+        } finally {
+            // The endpoint thread would otherwise keep a failed run from exiting
+            metricsEndpoint.ifPresent(MetricsEndpoint::close);
+            metrics.close();
+            cellPrefetcher.ifPresent(CellPrefetcher::close);
+        }
 
+        cellCache.ifPresent(CellCache::logStatistics);
         osmpbWriter.closeOSMPBFFile();
+        if (timingReport.isPresent()) {
+            timingReport.get().close();
+        }
+        additionalData.close();
+        if (featurePool != null) {
+            featurePool.shutdown();
+        }
     }
 
-    private Map<String, Optional<String>> getRelatedAreas(Map<String, double[]> grid2448, Map<String, List<File>> areas) {
-        return areas
-                .keySet()
-                .parallelStream()
-                .filter(grid2448::containsKey)
-                .collect(Collectors.toMap(
-                        area -> area,
-                        area -> {
-                            double[] bbox = grid2448.get(area);
-                            double minx = bbox[0];
-                            double miny = bbox[2];
-
-                            double searchx = minx + 24e3 - 2 * 48e3;
-                            double searchy = miny + 12e3 - 2 * 24e3;
-                            double[] search = new double[]{searchx, searchy};
-
-                            return areas
-                                    .keySet()
-                                    .parallelStream()
-                                    .filter(grid2448::containsKey)
-                                    .filter(searchArea -> {
-                                        double[] searchBBox = grid2448.get(searchArea);
-                                        return geomUtils.pointInside(searchBBox, search);
-                                    }).findFirst();
-                        }));
+    private void commitCell(CellResult result, int order, OSMPBFWriter osmpbWriter) throws IOException {
+        if (result == null) {
+            metrics.cellSkipped();
+            return;
+        }
+        osmpbWriter.useRunOrder(order);
+        if (result.cached() != null) {
+            osmpbWriter.useShard(outputSharding.shardOf(result.cached().cell()));
+            cellCache.get().replay(result.cached(), osmpbWriter);
+            metrics.cellCached();
+            return;
+        }
+
+        SingleCellConverter cellConverter = result.converter();
+        cellConverter.assignFeatureIDs();
+        osmpbWriter.useShard(outputSharding.shardOf(cellConverter.getCell()));
+        OSMPBFWriter.CellRuns runs = cellConverter.writeTo(osmpbWriter);
+
+        if (cellCache.isPresent()) {
+            cellCache.get().store(new CellCache.Entry(cellConverter.getCell(), result.fingerprint(), runs));
+        }
+        if (timingReport.isPresent()) {
+            timingReport.get().write(cellConverter.getStats());
+        }
+        metrics.cellWritten(cellConverter.getStats(), cellConverter.getStringTable().size());
+    }
+
+    private CellResult convertCell(File cellFile) {
+        logger.info("Processing file: " + cellFile.toString() + " in thread [" + Thread.currentThread().getId() + "]");
+        // The prefetched inputs are released as soon as the cell has been read
+        try (CellPrefetcher.CellInputs inputs = cellPrefetcher.isPresent() ? cellPrefetcher.get().take(cellFile) : null) {
+            SingleCellConverter cellConverter = new SingleCellConverter(cellFile, conf, gridExtents, featurePreprocessMML, shapePreprocessor, workerGeomUtils.get(), additionalData, tagRules, featurePool);
+            cellConverter.usePrefetched(inputs);
+            if (cellConverter.isValidCell()) {
+                String fingerprint = null;
+                if (cellCache.isPresent()) {
+                    fingerprint = cellConverter.fingerprint();
+                    CellCache.Entry cached = cellCache.get().load(cellConverter.getCell(), fingerprint);
+                    if (cached != null) {
+                        logger.info("Cell " + cellConverter.getCell() + " unchanged, using cached result");
+                        return new CellResult(null, fingerprint, cached);
+                    }
+                }
+                cellConverter.doConvert();
+                return new CellResult(cellConverter, fingerprint, null);
+            }
+        } catch (IOException e) {
+            logger.severe("Converting file " + cellFile + " failed. Exception: " + e.toString());
+            e.printStackTrace();
+        }
+        return null;
     }
 
-    private void initializeCachedDatasources() {
-        cachedDatasources = new CachedAdditionalDataSources(conf);
+    private void initializeAdditionalData() throws IOException {
+        additionalData = AdditionalDataIndex.openOrBuild(conf, gridExtents);
     }
 
     private Stream<File> getMTKCellFiles(File mtkDirectory) {
@@ -175,12 +247,21 @@ class MTKToGarminConverter {
         return files.stream().sorted();
     }
 
-    MTKToGarminConverter(File configFile) {
+    MTKToGarminConverter(File configFile) throws IOException {
         conf = readConfigFile(configFile);
         initializeOGR();
         readGridExtents();
         geomUtils = new GeomUtils();
-        nodeCache = new NodeCache();
+        cellCache = CellCache.fromConfig(conf);
+        // Before the timing report, which may overwrite the report of the earlier run the scheduler reads
+        cellScheduler = CellScheduler.fromConfig(conf);
+        timingReport = TimingReport.fromConfig(conf);
+        metrics = new ConversionMetrics();
+        outputSharding = OutputSharding.fromConfig(conf, gridExtents);
+        tagRules = TagRules.fromConfig(conf);
+        cellPrefetcher = CellPrefetcher.fromConfig(conf);
+        int featureThreads = conf.hasPath("featureThreads") ? conf.getInt("featureThreads") : 1;
+        featurePool = featureThreads > 1 ? new ForkJoinPool(featureThreads) : null;
 
     }
 
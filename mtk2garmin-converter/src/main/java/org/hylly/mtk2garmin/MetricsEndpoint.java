@@ -0,0 +1,95 @@
+package org.hylly.mtk2garmin;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.typesafe.config.Config;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.function.DoubleSupplier;
+import java.util.logging.Logger;
+
+/*
+ * Serves the conversion metrics in the Prometheus text format at /metrics. Only started when metricsPort
+ * is set, and bound to the loopback address unless metricsHost says otherwise, e.g. 0.0.0.0 to reach it
+ * from outside a container.
+ */
+class MetricsEndpoint implements AutoCloseable {
+    private final Logger logger = Logger.getLogger(MetricsEndpoint.class.getName());
+
+    private record Metric(String name, String type, String help, DoubleSupplier value) {
+    }
+
+    private final HttpServer server;
+    private final List<Metric> metrics;
+
+    static Optional<MetricsEndpoint> fromConfig(Config conf, ConversionMetrics metrics) throws IOException {
+        if (!conf.hasPath("metricsPort")) {
+            return Optional.empty();
+        }
+        String host = conf.hasPath("metricsHost") ? conf.getString("metricsHost") : "127.0.0.1";
+        return Optional.of(new MetricsEndpoint(new InetSocketAddress(host, conf.getInt("metricsPort")), metrics));
+    }
+
+    MetricsEndpoint(InetSocketAddress address, ConversionMetrics m) throws IOException {
+        this.metrics = List.of(
+                new Metric("mtk2garmin_cells", "gauge", "Cells to convert in this run", m::getCellsTotal),
+                new Metric("mtk2garmin_cells_done_total", "counter", "Cells written, reused from the cell cache or skipped", m::getCellsDone),
+                new Metric("mtk2garmin_cells_cached_total", "counter", "Cells reused from the cell cache", m::getCellsCached),
+                new Metric("mtk2garmin_cells_skipped_total", "counter", "Cells that were not valid or failed to convert", m::getCellsSkipped),
+                new Metric("mtk2garmin_cells_remaining", "gauge", "Cells not done yet", m::getCellsRemaining),
+                new Metric("mtk2garmin_cells_in_flight", "gauge", "Cells submitted to the workers and not written yet", m::getCellsInFlight),
+                new Metric("mtk2garmin_features_total", "counter", "Features converted", m::getFeatures),
+                new Metric("mtk2garmin_nodes_total", "counter", "Nodes written", m::getNodes),
+                new Metric("mtk2garmin_ways_total", "counter", "Ways written", m::getWays),
+                new Metric("mtk2garmin_features_per_second", "gauge", "Features per second over the last cells", m::getFeaturesPerSecond),
+                new Metric("mtk2garmin_nodes_per_second", "gauge", "Nodes per second over the last cells", m::getNodesPerSecond),
+                new Metric("mtk2garmin_ways_per_second", "gauge", "Ways per second over the last cells", m::getWaysPerSecond),
+                new Metric("mtk2garmin_seconds_since_last_cell", "gauge", "Seconds since a cell was last done", m::getSecondsSinceLastCell),
+                new Metric("mtk2garmin_stringtable_strings", "gauge", "Strings in the string table of the last written cell", m::getLastStringTableSize),
+                new Metric("mtk2garmin_stringtable_strings_max", "gauge", "Most strings in the string table of a cell", m::getMaxStringTableSize),
+                new Metric("mtk2garmin_heap_used_bytes", "gauge", "Used Java heap", m::getHeapUsedBytes),
+                new Metric("mtk2garmin_heap_max_bytes", "gauge", "Maximum Java heap", m::getHeapMaxBytes),
+                new Metric("mtk2garmin_nonheap_used_bytes", "gauge", "Used non-heap memory of the JVM", m::getNonHeapUsedBytes),
+                new Metric("mtk2garmin_direct_buffer_bytes", "gauge", "Memory of direct buffers", m::getDirectBufferBytes),
+                new Metric("mtk2garmin_mapped_buffer_bytes", "gauge", "Memory of mapped buffers", m::getMappedBufferBytes),
+                new Metric("mtk2garmin_resident_bytes", "gauge", "Resident set of the process, including native memory", m::getResidentBytes));
+
+        this.server = HttpServer.create(address, 0);
+        server.createContext("/metrics", this::handle);
+        server.start();
+        logger.info("Serving metrics at http://" + address.getHostString() + ":" + server.getAddress().getPort() + "/metrics");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    String render() {
+        StringBuilder text = new StringBuilder();
+        for (Metric metric : metrics) {
+            double value = metric.value().getAsDouble();
+            text.append("# HELP ").append(metric.name()).append(' ').append(metric.help()).append('\n')
+                    .append("# TYPE ").append(metric.name()).append(' ').append(metric.type()).append('\n')
+                    .append(metric.name()).append(' ')
+                    .append(value == Math.rint(value) ? Long.toString((long) value) : String.format(Locale.ROOT, "%.3f", value))
+                    .append('\n');
+        }
+        return text.toString();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
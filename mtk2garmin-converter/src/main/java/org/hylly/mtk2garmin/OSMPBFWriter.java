@@ -1,58 +1,277 @@
 package org.hylly.mtk2garmin;
 
-import crosby.binary.file.BlockOutputStream;
-import crosby.binary.osmosis.OsmosisSerializer;
-import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
-import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
-import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
-import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Comparator;
-import java.util.Date;
-import java.util.Map;
-import java.util.stream.Stream;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.logging.Logger;
 
 public class OSMPBFWriter {
+    private final Logger logger = Logger.getLogger(OSMPBFWriter.class.getName());
 
-    private final FileOutputStream outputStream;
-    private final OsmosisSerializer osmosisSerializer;
-    private final Date timestamp = new Date();
+    private final File outFile;
+    private final int compressionLevel;
+    private final int threads;
 
-    OSMPBFWriter(File outFile) throws FileNotFoundException {
-        this.outputStream = new FileOutputStream(outFile);
-        this.osmosisSerializer = new OsmosisSerializer(new BlockOutputStream(this.outputStream));
+    // Every written cell adds one ID-sorted run per element type. The runs are k-way merged into the
+    // final file on close, so the output is sorted by type and then by ID over the whole country.
+    private final ElementRunFile nodeRuns;
+    private final ElementRunFile wayRuns;
+    private final ElementRunFile relationRuns;
+
+    // Cells can be written to named shards, which become separate files in the shards directory next to
+    // the output file, with a manifest. Runs of the unnamed shard go to the output file itself.
+    private final File shardDirectory;
+    private final ObjectArrayList<String> shards = new ObjectArrayList<>();
+    private final Object2IntOpenHashMap<String> shardIndexes = new Object2IntOpenHashMap<>();
+    private int currentShard = -1;
+
+    // Elements written by several cells, the shared way nodes, are taken from the run with the lowest
+    // order, and from the first written among equal ones. Ordering the runs by cell keeps the output the
+    // same whatever order the cells are written in.
+    private int runOrder = 0;
+
+    OSMPBFWriter(File outFile) throws IOException {
+        this(outFile, PBFBlockEncoder.DEFAULT_COMPRESSION_LEVEL, 1);
+    }
+
+    OSMPBFWriter(File outFile, int compressionLevel, int threads) throws IOException {
+        this.outFile = outFile;
+        this.compressionLevel = compressionLevel;
+        this.threads = threads;
+        this.nodeRuns = new ElementRunFile(ElementType.NODE, new File(outFile.getPath() + ".nodes.spill"));
+        this.wayRuns = new ElementRunFile(ElementType.WAY, new File(outFile.getPath() + ".ways.spill"));
+        this.relationRuns = new ElementRunFile(ElementType.RELATION, new File(outFile.getPath() + ".relations.spill"));
+        this.shardDirectory = new File(outFile.getAbsoluteFile().getParentFile(), "shards");
+        this.shardIndexes.defaultReturnValue(-1);
     }
 
     void startWritingOSMPBF() {
-        this.osmosisSerializer.writeEmptyHeaderIfNeeded();
     }
 
-    void writeOSMPBFElements(
-            StringTable stringTable,
-            Long2ObjectOpenHashMap<LightNode> nodes,
-            Long2ObjectOpenHashMap<LightWay> ways,
-            Long2ObjectOpenHashMap<LightRelation> relations
-    ) {
-        Stream<NodeContainer> osmiumNodes = nodes.long2ObjectEntrySet().stream().parallel().map(Map.Entry::getValue).sorted(Comparator.comparingLong(LightNode::getId)).map(n -> n.toOsmiumEntity(stringTable, timestamp));
-        osmiumNodes.sequential().forEach(this.osmosisSerializer::process);
+    // Encoded runs of one cell, an empty array when the cell has no elements of the type
+    record CellRuns(byte[] nodes, byte[] ways, byte[] relations) {
+    }
+
+    CellRuns writeOSMPBFElements(StringTable stringTable, CellElementStore store, CellStats stats) throws IOException {
+        long start = System.nanoTime();
+        CellRuns runs = encodeElements(stringTable, store);
+        long encoded = System.nanoTime();
+        writeRuns(runs);
+        stats.addPartNanos(CellStats.Part.ENCODE, encoded - start);
+        stats.addPartNanos(CellStats.Part.SPILL, System.nanoTime() - encoded);
+        stats.addEncodedBytes(runs.nodes().length + runs.ways().length + runs.relations().length);
+        return runs;
+    }
+
+    // Following writes go to the named shard, or to the output file when shard is null
+    void useShard(String shard) {
+        int index = shardIndexes.getInt(shard);
+        if (index < 0) {
+            index = shards.size();
+            shards.add(shard);
+            shardIndexes.put(shard, index);
+        }
+        currentShard = index;
+    }
+
+    // Following runs get this order in the merge
+    void useRunOrder(int order) {
+        runOrder = order;
+    }
+
+    void writeRuns(CellRuns runs) throws IOException {
+        if (currentShard < 0) {
+            useShard(null);
+        }
+        appendRun(nodeRuns, runs.nodes());
+        appendRun(wayRuns, runs.ways());
+        appendRun(relationRuns, runs.relations());
+    }
+
+    private CellRuns encodeElements(StringTable stringTable, CellElementStore store) {
+        // Node ids follow the coordinate hash, so nodes are the only elements whose ids are not
+        // already ascending in store order
+        int[] sortedNodes = new int[store.getNodeCount()];
+        for (int i = 0; i < sortedNodes.length; i++) {
+            sortedNodes[i] = i;
+        }
+        IntArrays.unstableSort(sortedNodes, (a, b) -> Long.compare(store.getNodeId(a), store.getNodeId(b)));
+
+        ElementRunOutput nodeRun = new ElementRunOutput(stringTable);
+        for (int n : sortedNodes) {
+            nodeRun.startRecord(store.getNodeId(n));
+            nodeRun.writeCoordinates(store.getNodeLat(n), store.getNodeLon(n));
+            nodeRun.writeTags(store, store.getNodeTags(n));
+        }
+
+        ElementRunOutput wayRun = new ElementRunOutput(stringTable);
+        for (int w = 0; w < store.getWayCount(); w++) {
+            wayRun.startRecord(store.getWayId(w));
+            wayRun.writeTags(store, store.getWayTags(w));
+            int refCount = store.getWayRefCount(w);
+            wayRun.startRefs(refCount);
+            for (int i = 0; i < refCount; i++) {
+                wayRun.writeRef(store.getNodeId(store.getWayRef(w, i)));
+            }
+        }
 
-        Stream<WayContainer> osmiumsWays = ways.long2ObjectEntrySet().stream().parallel().map(Map.Entry::getValue).sorted(Comparator.comparingLong(LightWay::getId)).map(w -> w.toOsmiumEntity(nodes, stringTable, timestamp));
-        osmiumsWays.sequential().forEach(this.osmosisSerializer::process);
-        
-        Stream<RelationContainer> osmiumRelations = relations.long2ObjectEntrySet().stream().map(Map.Entry::getValue).sorted(Comparator.comparingLong(LightRelation::getId)).map(r -> r.toOsmiumEntity(stringTable, timestamp));
-        osmiumRelations.sequential().forEach(this.osmosisSerializer::process);
+        int outer = stringTable.getStringId("outer");
+        int inner = stringTable.getStringId("inner");
+        ElementRunOutput relationRun = new ElementRunOutput(stringTable);
+        for (int r = 0; r < store.getRelationCount(); r++) {
+            relationRun.startRecord(store.getRelationId(r));
+            relationRun.writeTags(store, store.getRelationTags(r));
+            int memberCount = store.getRelationMemberCount(r);
+            relationRun.startRefs(memberCount);
+            for (int i = 0; i < memberCount; i++) {
+                int w = store.getRelationMember(r, i);
+                relationRun.writeRef(store.getWayId(w));
+                relationRun.writeByte(ElementType.WAY.ordinal());
+                relationRun.writeString(store.getWayRole(w) == CellElementStore.ROLE_INNER ? inner : outer);
+            }
+        }
+        return new CellRuns(toBytes(nodeRun), toBytes(wayRun), toBytes(relationRun));
+    }
+
+    private static byte[] toBytes(ElementRunOutput run) {
+        return run.isEmpty() ? new byte[0] : run.toByteArray();
+    }
+
+    private void appendRun(ElementRunFile runFile, byte[] run) throws IOException {
+        if (run.length > 0) {
+            runFile.appendRun(run, currentShard, runOrder);
+        }
     }
 
     void flush() throws IOException {
-        this.osmosisSerializer.flush();
+        nodeRuns.flush();
+        wayRuns.flush();
+        relationRuns.flush();
     }
 
     void closeOSMPBFFile() throws IOException {
-        this.osmosisSerializer.complete();
-        this.outputStream.close();
+        if (shards.isEmpty()) {
+            useShard(null);
+        }
+        try (PrintWriter manifest = shards.size() > 1 || shards.get(0) != null ? openManifest() : null) {
+            for (int shard = 0; shard < shards.size(); shard++) {
+                String name = shards.get(shard);
+                File file = name == null ? outFile : new File(shardDirectory, name + ".osm.pbf");
+                try (PBFBlockEncoder encoder = new PBFBlockEncoder(new BufferedOutputStream(new FileOutputStream(file), 1 << 20), compressionLevel, threads)) {
+                    List<ElementRunInput> shardNodeRuns = nodeRuns.openRuns(shard);
+                    encoder.writeHeader(bounds(shardNodeRuns));
+
+                    mergeRuns(nodeRuns, shardNodeRuns, file, encoder);
+                    mergeRuns(wayRuns, wayRuns.openRuns(shard), file, encoder);
+                    mergeRuns(relationRuns, relationRuns.openRuns(shard), file, encoder);
+
+                    if (manifest != null) {
+                        writeManifestEntry(manifest, shard == 0, name, shardDirectory.toPath().relativize(file.getAbsoluteFile().toPath()).toString(), encoder);
+                    }
+                }
+            }
+            if (manifest != null) {
+                manifest.println();
+                manifest.println("]");
+                if (manifest.checkError()) {
+                    throw new IOException("Writing the shard manifest failed");
+                }
+            }
+        } finally {
+            nodeRuns.close();
+            wayRuns.close();
+            relationRuns.close();
+        }
+    }
+
+    // One JSON object per shard, for scheduling the later stages per shard
+    private PrintWriter openManifest() throws IOException {
+        Files.createDirectories(shardDirectory.toPath());
+        PrintWriter manifest = new PrintWriter(Files.newBufferedWriter(shardDirectory.toPath().resolve("manifest.json"), StandardCharsets.UTF_8));
+        manifest.print("[");
+        return manifest;
+    }
+
+    private static void writeManifestEntry(PrintWriter manifest, boolean first, String name, String file, PBFBlockEncoder encoder) {
+        double[] bounds = encoder.getBounds();
+        manifest.println(first ? "" : ",");
+        manifest.printf(Locale.ROOT, "  {\"shard\": \"%s\", \"file\": \"%s\", \"bbox\": %s, \"nodes\": %d, \"ways\": %d, \"relations\": %d}",
+                name == null ? "" : name,
+                file,
+                bounds == null ? "null" : String.format(Locale.ROOT, "[%.7f, %.7f, %.7f, %.7f]", bounds[0], bounds[1], bounds[2], bounds[3]),
+                encoder.getCount(ElementType.NODE),
+                encoder.getCount(ElementType.WAY),
+                encoder.getCount(ElementType.RELATION));
+    }
+
+    // Bounds of all nodes of the runs, null when there are none
+    private static double[] bounds(List<ElementRunInput> runs) {
+        double[] bounds = null;
+        for (ElementRunInput run : runs) {
+            double[] runBounds = run.getBounds();
+            if (bounds == null) {
+                bounds = runBounds.clone();
+            } else {
+                bounds[0] = Math.min(bounds[0], runBounds[0]);
+                bounds[1] = Math.min(bounds[1], runBounds[1]);
+                bounds[2] = Math.max(bounds[2], runBounds[2]);
+                bounds[3] = Math.max(bounds[3], runBounds[3]);
+            }
+        }
+        return bounds;
+    }
+
+    private void mergeRuns(ElementRunFile runFile, List<ElementRunInput> runs, File file, PBFBlockEncoder encoder) throws IOException {
+        logger.info("Merging " + runs.size() + " sorted runs into " + file);
+
+        PriorityQueue<ElementRunInput> queue = new PriorityQueue<>(Math.max(1, runs.size()),
+                Comparator.comparingLong(ElementRunInput::getId)
+                        .thenComparingInt(ElementRunInput::getOrder)
+                        .thenComparingInt(ElementRunInput::getRunIndex));
+        for (ElementRunInput run : runs) {
+            if (run.next()) {
+                queue.add(run);
+            }
+        }
+
+        long lastId = Long.MIN_VALUE;
+        ObjectArrayList<String> lastTagKeys = new ObjectArrayList<>();
+        ObjectArrayList<String> lastTagValues = new ObjectArrayList<>();
+        long shared = 0;
+        while (!queue.isEmpty()) {
+            ElementRunInput run = queue.poll();
+            if (run.getId() != lastId) {
+                encoder.add(run, runFile.getType());
+                lastId = run.getId();
+                lastTagKeys.clear();
+                lastTagKeys.addAll(run.tagKeys);
+                lastTagValues.clear();
+                lastTagValues.addAll(run.tagValues);
+            } else if (runFile.getType() == ElementType.NODE && run.tagKeys.equals(lastTagKeys) && run.tagValues.equals(lastTagValues)) {
+                // Way nodes are shared by the cells that have the same line, at the borders and along lines read
+                // into several cells, and are written once, from the first run in order. Their coordinates are
+                // in the same pixel of the coordinate hash, the tags must be the same.
+                shared++;
+            } else {
+                throw new IllegalStateException(runFile.getType() + " " + run.getId() + " of run " + run.getRunIndex()
+                        + " differs from the one already written with the same id");
+            }
+            if (run.next()) {
+                queue.add(run);
+            }
+        }
+        logger.info("Merge done, " + shared + " shared way nodes written once");
     }
 }
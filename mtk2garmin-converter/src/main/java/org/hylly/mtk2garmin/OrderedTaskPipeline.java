@@ -0,0 +1,64 @@
+package org.hylly.mtk2garmin;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+class OrderedTaskPipeline<T> implements AutoCloseable {
+    private final ExecutorService executor;
+    private final ArrayDeque<PendingTask<T>> pending = new ArrayDeque<>();
+    private final int maxPending;
+
+    OrderedTaskPipeline(int threads, int maxPending) {
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.maxPending = Math.max(1, maxPending);
+    }
+
+    void submit(Callable<T> work, Consumer<T> commit) {
+        pending.addLast(new PendingTask<>(executor.submit(work), commit));
+        while (pending.size() > maxPending) {
+            commitNext();
+        }
+    }
+
+    void runInOrder(Runnable action) {
+        pending.addLast(new PendingTask<>(null, ignored -> action.run()));
+        while (pending.size() > maxPending) {
+            commitNext();
+        }
+    }
+
+    void drain() {
+        while (!pending.isEmpty()) {
+            commitNext();
+        }
+    }
+
+    private void commitNext() {
+        PendingTask<T> task = pending.removeFirst();
+        T result = null;
+        if (task.future != null) {
+            try {
+                result = task.future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        task.commit.accept(result);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private record PendingTask<T>(Future<T> future, Consumer<T> commit) {
+    }
+}
@@ -0,0 +1,42 @@
+package org.hylly.mtk2garmin;
+
+import com.typesafe.config.Config;
+
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * Decides which output file a cell goes to. By default everything is written into all_direct.osm.pbf,
+ * "area" writes one file per 4 character area code and "tile" one per tile of a lon/lat grid with
+ * shardTileSize degree sides. A cell belongs to the tile of its center, so shards are made of whole
+ * cells and every shard has all the nodes its ways refer to.
+ */
+interface OutputSharding {
+
+    // The shard of the cell, null when the output is not sharded
+    String shardOf(String cell);
+
+    static OutputSharding fromConfig(Config conf, Map<String, double[]> gridExtents) {
+        String mode = conf.hasPath("outputSharding") ? conf.getString("outputSharding") : "none";
+        return switch (mode) {
+            case "none" -> cell -> null;
+            case "area" -> cell -> cell.substring(0, 4);
+            case "tile" -> {
+                double tileSize = conf.hasPath("shardTileSize") ? conf.getDouble("shardTileSize") : 1.0;
+                if (tileSize <= 0) {
+                    throw new IllegalArgumentException("shardTileSize must be positive");
+                }
+                yield cell -> tileOf(gridExtents.get(cell), tileSize);
+            }
+            default -> throw new IllegalArgumentException("Unknown outputSharding " + mode + ", expected none, area or tile");
+        };
+    }
+
+    // Named after the south west corner of the tile
+    private static String tileOf(double[] bbox, double tileSize) {
+        double[] lonLat = new double[2];
+        Projections.tm35ToGeographic((bbox[0] + bbox[1]) / 2, (bbox[2] + bbox[3]) / 2, lonLat);
+        return String.format(Locale.ROOT, "N%.2f_E%.2f",
+                Math.floor(lonLat[1] / tileSize) * tileSize, Math.floor(lonLat[0] / tileSize) * tileSize);
+    }
+}
@@ -0,0 +1,282 @@
+package org.hylly.mtk2garmin;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+import crosby.binary.Fileformat;
+import crosby.binary.Osmformat;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+/*
+ * Writes merged elements straight into PBF primitive blocks. Every block holds elements of one type,
+ * nodes as DenseNodes, and has its own string table. Ids, coordinates and refs are delta coded as the
+ * format requires. Elements are written without metadata.
+ *
+ * Blocks are serialized and compressed on a worker pool and written in order as they complete, at most
+ * two blocks per thread are in flight. Compression level 0 writes raw, uncompressed blobs.
+ */
+class PBFBlockEncoder implements AutoCloseable {
+    private static final int BLOCK_SIZE = 8000;
+    private static final int GRANULARITY = 100;
+    private static final double COORD_SCALE = 1e9 / GRANULARITY;
+
+    static final int UNCOMPRESSED = 0;
+    static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+    private final OutputStream output;
+    private final int compressionLevel;
+    private final OrderedTaskPipeline<byte[]> blobs;
+    private final ThreadLocal<Deflater> deflaters;
+
+    private final Object2IntOpenHashMap<String> stringIds = new Object2IntOpenHashMap<>();
+    private final ObjectArrayList<String> strings = new ObjectArrayList<>();
+    private ElementType blockType;
+    private int blockCount = 0;
+
+    private final LongArrayList nodeIds = new LongArrayList(BLOCK_SIZE);
+    private final LongArrayList nodeLats = new LongArrayList(BLOCK_SIZE);
+    private final LongArrayList nodeLons = new LongArrayList(BLOCK_SIZE);
+    private final IntArrayList nodeKeysVals = new IntArrayList(BLOCK_SIZE);
+    private boolean nodeTags = false;
+
+    private final Osmformat.PrimitiveGroup.Builder group = Osmformat.PrimitiveGroup.newBuilder();
+
+    private final long[] elementCounts = new long[ElementType.values().length];
+    private double minLat = Double.POSITIVE_INFINITY;
+    private double minLon = Double.POSITIVE_INFINITY;
+    private double maxLat = Double.NEGATIVE_INFINITY;
+    private double maxLon = Double.NEGATIVE_INFINITY;
+
+    PBFBlockEncoder(OutputStream out, int compressionLevel, int threads) {
+        if (compressionLevel < UNCOMPRESSED || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid PBF compression level " + compressionLevel);
+        }
+        this.output = out;
+        this.compressionLevel = compressionLevel;
+        this.blobs = new OrderedTaskPipeline<>(threads, 2 * threads);
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(compressionLevel));
+        this.stringIds.defaultReturnValue(-1);
+        this.strings.add("");
+    }
+
+    // Bounds as min lat, min lon, max lat, max lon, the header has no bounding box when they are null
+    void writeHeader(double[] bounds) throws IOException {
+        // The merge writes nodes, then ways, then relations, each ordered by id
+        Osmformat.HeaderBlock.Builder header = Osmformat.HeaderBlock.newBuilder()
+                .addRequiredFeatures("OsmSchema-V0.6")
+                .addRequiredFeatures("DenseNodes")
+                .addOptionalFeatures("Sort.Type_then_ID")
+                .setWritingprogram("mtk2garmin");
+        if (bounds != null) {
+            // In nanodegrees, rounded outwards so that every node is within
+            header.setBbox(Osmformat.HeaderBBox.newBuilder()
+                    .setBottom((long) Math.floor(bounds[0] * 1e9))
+                    .setLeft((long) Math.floor(bounds[1] * 1e9))
+                    .setTop((long) Math.ceil(bounds[2] * 1e9))
+                    .setRight((long) Math.ceil(bounds[3] * 1e9)));
+        }
+        writeBlob("OSMHeader", header.build());
+    }
+
+    void add(ElementRunInput element, ElementType type) throws IOException {
+        if (blockType != type || blockCount == BLOCK_SIZE) {
+            flushBlock();
+            blockType = type;
+        }
+        blockCount++;
+        elementCounts[type.ordinal()]++;
+
+        switch (type) {
+            case NODE -> addNode(element);
+            case WAY -> addWay(element);
+            case RELATION -> addRelation(element);
+        }
+    }
+
+    private void addNode(ElementRunInput node) {
+        nodeIds.add(node.id);
+        nodeLats.add(Math.round(node.lat * COORD_SCALE));
+        nodeLons.add(Math.round(node.lon * COORD_SCALE));
+        minLat = Math.min(minLat, node.lat);
+        minLon = Math.min(minLon, node.lon);
+        maxLat = Math.max(maxLat, node.lat);
+        maxLon = Math.max(maxLon, node.lon);
+        for (int i = 0; i < node.tagKeys.size(); i++) {
+            nodeKeysVals.add(stringId(node.tagKeys.get(i)));
+            nodeKeysVals.add(stringId(node.tagValues.get(i)));
+            nodeTags = true;
+        }
+        nodeKeysVals.add(0);
+    }
+
+    private void addWay(ElementRunInput way) {
+        Osmformat.Way.Builder builder = Osmformat.Way.newBuilder().setId(way.id);
+        for (int i = 0; i < way.tagKeys.size(); i++) {
+            builder.addKeys(stringId(way.tagKeys.get(i)));
+            builder.addVals(stringId(way.tagValues.get(i)));
+        }
+        long lastRef = 0;
+        for (int i = 0; i < way.refs.size(); i++) {
+            long ref = way.refs.getLong(i);
+            builder.addRefs(ref - lastRef);
+            lastRef = ref;
+        }
+        group.addWays(builder);
+    }
+
+    private void addRelation(ElementRunInput relation) {
+        Osmformat.Relation.Builder builder = Osmformat.Relation.newBuilder().setId(relation.id);
+        for (int i = 0; i < relation.tagKeys.size(); i++) {
+            builder.addKeys(stringId(relation.tagKeys.get(i)));
+            builder.addVals(stringId(relation.tagValues.get(i)));
+        }
+        long lastRef = 0;
+        for (int i = 0; i < relation.refs.size(); i++) {
+            long ref = relation.refs.getLong(i);
+            builder.addMemids(ref - lastRef);
+            lastRef = ref;
+            builder.addTypes(Osmformat.Relation.MemberType.forNumber(relation.memberTypes.getByte(i)));
+            builder.addRolesSid(stringId(relation.memberRoles.get(i)));
+        }
+        group.addRelations(builder);
+    }
+
+    // Index 0 of the string table is reserved, it separates the tags of dense nodes
+    private int stringId(String s) {
+        int id = stringIds.getInt(s);
+        if (id < 0) {
+            id = strings.size();
+            stringIds.put(s, id);
+            strings.add(s);
+        }
+        return id;
+    }
+
+    private void flushBlock() throws IOException {
+        if (blockCount == 0) {
+            return;
+        }
+        if (blockType == ElementType.NODE) {
+            group.setDense(buildDenseNodes());
+        }
+
+        Osmformat.StringTable.Builder stringTable = Osmformat.StringTable.newBuilder();
+        for (String s : strings) {
+            stringTable.addS(ByteString.copyFrom(s, StandardCharsets.UTF_8));
+        }
+
+        Osmformat.PrimitiveBlock block = Osmformat.PrimitiveBlock.newBuilder()
+                .setStringtable(stringTable)
+                .addPrimitivegroup(group)
+                .setGranularity(GRANULARITY)
+                .build();
+        writeBlob("OSMData", block);
+
+        group.clear();
+        stringIds.clear();
+        strings.clear();
+        strings.add("");
+        blockCount = 0;
+    }
+
+    private Osmformat.DenseNodes.Builder buildDenseNodes() {
+        Osmformat.DenseNodes.Builder dense = Osmformat.DenseNodes.newBuilder();
+        long lastId = 0;
+        long lastLat = 0;
+        long lastLon = 0;
+        for (int i = 0; i < nodeIds.size(); i++) {
+            dense.addId(nodeIds.getLong(i) - lastId);
+            dense.addLat(nodeLats.getLong(i) - lastLat);
+            dense.addLon(nodeLons.getLong(i) - lastLon);
+            lastId = nodeIds.getLong(i);
+            lastLat = nodeLats.getLong(i);
+            lastLon = nodeLons.getLong(i);
+        }
+        // keys_vals may be left out when no node of the block has tags
+        if (nodeTags) {
+            for (int i = 0; i < nodeKeysVals.size(); i++) {
+                dense.addKeysVals(nodeKeysVals.getInt(i));
+            }
+        }
+        nodeIds.clear();
+        nodeLats.clear();
+        nodeLons.clear();
+        nodeKeysVals.clear();
+        nodeTags = false;
+        return dense;
+    }
+
+    long getCount(ElementType type) {
+        return elementCounts[type.ordinal()];
+    }
+
+    // Bounds of the written nodes as min lat, min lon, max lat, max lon, null when there are none
+    double[] getBounds() {
+        return getCount(ElementType.NODE) == 0 ? null : new double[]{minLat, minLon, maxLat, maxLon};
+    }
+
+    private void writeBlob(String type, MessageLite message) {
+        blobs.submit(() -> encodeBlob(type, message), blob -> {
+            try {
+                output.write(blob);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    // Length prefixed BlobHeader followed by the Blob, as in the PBF file format
+    private byte[] encodeBlob(String type, MessageLite message) throws IOException {
+        byte[] raw = message.toByteArray();
+        Fileformat.Blob.Builder blob = Fileformat.Blob.newBuilder();
+        if (compressionLevel == UNCOMPRESSED) {
+            blob.setRaw(ByteString.copyFrom(raw));
+        } else {
+            blob.setRawSize(raw.length).setZlibData(ByteString.copyFrom(deflate(raw)));
+        }
+        byte[] blobBytes = blob.build().toByteArray();
+        byte[] header = Fileformat.BlobHeader.newBuilder().setType(type).setDatasize(blobBytes.length).build().toByteArray();
+
+        ByteArrayOutputStream framed = new ByteArrayOutputStream(4 + header.length + blobBytes.length);
+        DataOutputStream out = new DataOutputStream(framed);
+        out.writeInt(header.length);
+        out.write(header);
+        out.write(blobBytes);
+        return framed.toByteArray();
+    }
+
+    private byte[] deflate(byte[] raw) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 2 + 64);
+        byte[] buffer = new byte[64 << 10];
+        while (!deflater.finished()) {
+            compressed.write(buffer, 0, deflater.deflate(buffer));
+        }
+        return compressed.toByteArray();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (OrderedTaskPipeline<byte[]> pipeline = blobs) {
+            flushBlock();
+            pipeline.drain();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            output.close();
+        }
+    }
+}
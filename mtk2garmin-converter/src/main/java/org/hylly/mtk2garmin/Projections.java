@@ -0,0 +1,102 @@
+package org.hylly.mtk2garmin;
+
+/*
+ * Pure Java versions of the projections the converter needs for every vertex. ETRS-TM35FIN uses the
+ * fourth order Krüger series of JHS 154 on the GRS80 ellipsoid. The spherical mercator is the one
+ * GeomUtils defines with +nadgrids=@null, so geographic coordinates pass through without a datum
+ * shift, which is also what GDAL does for these definitions.
+ */
+final class Projections {
+    private static final double MERCATOR_RADIUS = 6378137.0;
+
+    private static final double A = 6378137.0;
+    private static final double F = 1 / 298.257222101;
+    private static final double K0 = 0.9996;
+    private static final double LON0 = Math.toRadians(27);
+    private static final double FALSE_EASTING = 500000.0;
+
+    private static final double E = Math.sqrt(F * (2 - F));
+    private static final double N = F / (2 - F);
+    private static final double A1 = A / (1 + N) * (1 + N * N / 4 + N * N * N * N / 64);
+
+    private static final double[] FORWARD = {
+            N / 2 - 2 * N * N / 3 + 5 * N * N * N / 16 + 41 * N * N * N * N / 180,
+            13 * N * N / 48 - 3 * N * N * N / 5 + 557 * N * N * N * N / 1440,
+            61 * N * N * N / 240 - 103 * N * N * N * N / 140,
+            49561 * N * N * N * N / 161280
+    };
+
+    private static final double[] INVERSE = {
+            N / 2 - 2 * N * N / 3 + 37 * N * N * N / 96 - N * N * N * N / 360,
+            N * N / 48 + N * N * N / 15 - 437 * N * N * N * N / 1440,
+            17 * N * N * N / 480 - 37 * N * N * N * N / 840,
+            4397 * N * N * N * N / 161280
+    };
+
+    private Projections() {
+    }
+
+    // ETRS-TM35FIN easting/northing to longitude/latitude in degrees, written to out[0] and out[1]
+    static void tm35ToGeographic(double easting, double northing, double[] out) {
+        double xi = northing / (A1 * K0);
+        double eta = (easting - FALSE_EASTING) / (A1 * K0);
+
+        double xiPrime = xi;
+        double etaPrime = eta;
+        for (int j = 1; j <= INVERSE.length; j++) {
+            xiPrime -= INVERSE[j - 1] * Math.sin(2 * j * xi) * Math.cosh(2 * j * eta);
+            etaPrime -= INVERSE[j - 1] * Math.cos(2 * j * xi) * Math.sinh(2 * j * eta);
+        }
+
+        double beta = Math.asin(Math.sin(xiPrime) / Math.cosh(etaPrime));
+        double l = Math.asin(Math.tanh(etaPrime) / Math.cos(beta));
+
+        double q = asinh(Math.tan(beta));
+        double qPrime = q;
+        for (int i = 0; i < 5; i++) {
+            qPrime = q + E * atanh(E * Math.tanh(qPrime));
+        }
+
+        out[0] = Math.toDegrees(LON0 + l);
+        out[1] = Math.toDegrees(Math.atan(Math.sinh(qPrime)));
+    }
+
+    // Longitude/latitude in degrees to ETRS-TM35FIN easting/northing, written to out[0] and out[1]
+    static void geographicToTM35(double lon, double lat, double[] out) {
+        double phi = Math.toRadians(lat);
+        double l = Math.toRadians(lon) - LON0;
+
+        double q = asinh(Math.tan(phi)) - E * atanh(E * Math.sin(phi));
+        double beta = Math.atan(Math.sinh(q));
+        double etaPrime = atanh(Math.cos(beta) * Math.sin(l));
+        double xiPrime = Math.asin(Math.sin(beta) * Math.cosh(etaPrime));
+
+        double xi = xiPrime;
+        double eta = etaPrime;
+        for (int j = 1; j <= FORWARD.length; j++) {
+            xi += FORWARD[j - 1] * Math.sin(2 * j * xiPrime) * Math.cosh(2 * j * etaPrime);
+            eta += FORWARD[j - 1] * Math.cos(2 * j * xiPrime) * Math.sinh(2 * j * etaPrime);
+        }
+
+        out[0] = A1 * eta * K0 + FALSE_EASTING;
+        out[1] = A1 * xi * K0;
+    }
+
+    static void geographicToMercator(double lon, double lat, double[] out) {
+        out[0] = MERCATOR_RADIUS * Math.toRadians(lon);
+        out[1] = MERCATOR_RADIUS * asinh(Math.tan(Math.toRadians(lat)));
+    }
+
+    static void mercatorToGeographic(double x, double y, double[] out) {
+        out[0] = Math.toDegrees(x / MERCATOR_RADIUS);
+        out[1] = Math.toDegrees(Math.atan(Math.sinh(y / MERCATOR_RADIUS)));
+    }
+
+    private static double asinh(double x) {
+        return Math.log(x + Math.sqrt(x * x + 1));
+    }
+
+    private static double atanh(double x) {
+        return 0.5 * Math.log((1 + x) / (1 - x));
+    }
+}
@@ -0,0 +1,277 @@
+package org.hylly.mtk2garmin;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigObject;
+import com.typesafe.config.ConfigValue;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap.Entry;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMaps;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Tag handler compiled from the rules of one source in tagrules.conf. Field names, tag keys and tag values
+ * of the rules are resolved to string ids up front. The ids of a string table are small and dense, so the
+ * rule of a field is an array index away, and formatted numeric values are cached like the builtin
+ * handlers do.
+ */
+class RuleTagHandler implements TagHandlerI {
+    private static final int COPY = 0;
+    private static final int MILLIMETRES = 1;
+    private static final int DECIMAL = 2;
+    private static final int[] NO_TAGS = new int[0];
+
+    // Tags are key and value id pairs
+    private record FieldRule(int tag, int format, boolean onlyIfAbsent, boolean numeric, int max,
+                             int[] positive, int[] negative, int[] divisors, int[][] classTags) {
+    }
+
+    private record TypeOverride(String tyyppi, int field, String value, int[] tags) {
+    }
+
+    private record TypeRemoval(String tyyppi, int[] keys) {
+    }
+
+    private final StringTable stringtable;
+    private final ObjectOpenHashSet<String> wantedFields = new ObjectOpenHashSet<>();
+    // Both indexed by the string id of the field name. Most fields are only copied, possibly under another
+    // key, and copyTags has the key for them. The others are marked with -1 and have a FieldRule.
+    private final int[] copyTags;
+    private final FieldRule[] fieldRules;
+    private final boolean skipEmpty;
+    private final int[] keepKeys;
+    private final int[] keepValues;
+    private final String[] keepValueStrings;
+    private final TypeOverride[] overrides;
+    private final TypeRemoval[] removals;
+
+    private final Int2IntOpenHashMap millimetreValueIds = new Int2IntOpenHashMap();
+    private final Object2IntOpenHashMap<String> decimalValueIds = new Object2IntOpenHashMap<>();
+
+    RuleTagHandler(Config rules, StringTable stringtable) {
+        this.stringtable = stringtable;
+        this.millimetreValueIds.defaultReturnValue(-1);
+        this.decimalValueIds.defaultReturnValue(-1);
+        this.skipEmpty = rules.hasPath("skipEmpty") && rules.getBoolean("skipEmpty");
+
+        // Field names get their string ids first, then the tag keys they map to, both in the order of the rule
+        // file. The ids decide where fields and tags land in the hash maps of every feature, which shows in
+        // how fast they are filled and iterated.
+        List<Map.Entry<String, ConfigValue>> fields = new ArrayList<>(rules.getObject("fields").entrySet());
+        fields.sort(Comparator.comparingInt(field -> field.getValue().origin().lineNumber()));
+        int[] fieldIds = new int[fields.size()];
+        for (int i = 0; i < fieldIds.length; i++) {
+            wantedFields.add(fields.get(i).getKey());
+            fieldIds[i] = stringtable.getStringId(fields.get(i).getKey());
+        }
+        int[] tagIds = new int[fields.size()];
+        for (int i = 0; i < tagIds.length; i++) {
+            Config rule = ((ConfigObject) fields.get(i).getValue()).toConfig();
+            tagIds[i] = rule.hasPath("tag") ? stringtable.getStringId(rule.getString("tag")) : fieldIds[i];
+        }
+        int idRange = Arrays.stream(fieldIds).max().orElse(-1) + 1;
+        copyTags = new int[idRange];
+        fieldRules = new FieldRule[idRange];
+        for (int id = 0; id < idRange; id++) {
+            copyTags[id] = id;
+        }
+        for (int i = 0; i < fieldIds.length; i++) {
+            FieldRule rule = compileField(fields.get(i).getKey(), tagIds[i], ((ConfigObject) fields.get(i).getValue()).toConfig());
+            if (rule == null) {
+                copyTags[fieldIds[i]] = tagIds[i];
+            } else {
+                copyTags[fieldIds[i]] = -1;
+                fieldRules[fieldIds[i]] = rule;
+            }
+        }
+
+        ConfigObject keep = rules.hasPath("keep") ? rules.getObject("keep") : null;
+        int keepCount = keep == null ? 0 : keep.size();
+        keepKeys = new int[keepCount];
+        keepValues = new int[keepCount];
+        keepValueStrings = new String[keepCount];
+        if (keep != null) {
+            int i = 0;
+            for (Map.Entry<String, ConfigValue> kept : keep.entrySet()) {
+                keepKeys[i] = stringtable.getStringId(kept.getKey());
+                keepValueStrings[i] = kept.getValue().unwrapped().toString();
+                keepValues[i] = stringtable.getStringId(keepValueStrings[i]);
+                i++;
+            }
+        }
+
+        List<? extends Config> overrideRules = rules.hasPath("overrides") ? rules.getConfigList("overrides") : List.of();
+        overrides = new TypeOverride[overrideRules.size()];
+        for (int i = 0; i < overrides.length; i++) {
+            Config override = overrideRules.get(i);
+            overrides[i] = new TypeOverride(override.getString("tyyppi"), stringtable.getStringId(override.getString("field")),
+                    override.getString("equals"), tagPairs(override.getObject("tags")));
+        }
+
+        List<? extends Config> removalRules = rules.hasPath("removals") ? rules.getConfigList("removals") : List.of();
+        removals = new TypeRemoval[removalRules.size()];
+        for (int i = 0; i < removals.length; i++) {
+            Config removal = removalRules.get(i);
+            List<String> keys = removal.getStringList("tags");
+            int[] keyIds = new int[keys.size()];
+            for (int k = 0; k < keyIds.length; k++) {
+                keyIds[k] = stringtable.getStringId(keys.get(k));
+            }
+            removals[i] = new TypeRemoval(removal.getString("tyyppi"), keyIds);
+        }
+    }
+
+    // null when the field is only copied
+    private FieldRule compileField(String field, int tag, Config rule) {
+        String value = rule.hasPath("value") ? rule.getString("value") : "copy";
+        int format = switch (value) {
+            case "copy" -> COPY;
+            case "millimetres" -> MILLIMETRES;
+            case "decimal" -> DECIMAL;
+            default -> throw new IllegalArgumentException("Unknown value " + value + " in the tag rule of " + field + ", expected copy, millimetres or decimal");
+        };
+        int[] positive = rule.hasPath("positive") ? tagPairs(rule.getObject("positive")) : NO_TAGS;
+        int[] negative = rule.hasPath("negative") ? tagPairs(rule.getObject("negative")) : NO_TAGS;
+
+        List<? extends Config> classes = rule.hasPath("classes") ? rule.getConfigList("classes") : List.of();
+        int[] divisors = new int[classes.size()];
+        int[][] classTags = new int[classes.size()][];
+        for (int i = 0; i < divisors.length; i++) {
+            divisors[i] = classes.get(i).getInt("divisor");
+            classTags[i] = tagPairs(classes.get(i).getObject("tags"));
+        }
+
+        boolean numeric = format == MILLIMETRES || rule.hasPath("max") || positive.length > 0 || negative.length > 0 || divisors.length > 0;
+        boolean onlyIfAbsent = rule.hasPath("onlyIfAbsent") && rule.getBoolean("onlyIfAbsent");
+        if (format == COPY && !numeric && !onlyIfAbsent) {
+            return null;
+        }
+        return new FieldRule(tag, format, onlyIfAbsent, numeric,
+                rule.hasPath("max") ? rule.getInt("max") : Integer.MAX_VALUE, positive, negative, divisors, classTags);
+    }
+
+    private int[] tagPairs(ConfigObject tags) {
+        IntArrayList pairs = new IntArrayList(2 * tags.size());
+        for (Map.Entry<String, ConfigValue> tag : tags.entrySet()) {
+            pairs.add(stringtable.getStringId(tag.getKey()));
+            pairs.add(stringtable.getStringId(tag.getValue().unwrapped().toString()));
+        }
+        return pairs.toIntArray();
+    }
+
+    @Override
+    public ObjectOpenHashSet<String> getWantedFields() {
+        return wantedFields;
+    }
+
+    // The per field loop is kept small so that it compiles into one piece with the string table lookups
+    @Override
+    public void addElementTags(Int2IntMap tags, Int2ObjectMap<String> fields, String tyyppi, double geomarea) {
+        if (keepKeys.length > 0 && isKept(tags, fields)) {
+            return;
+        }
+
+        for (Entry<String> field : Int2ObjectMaps.fastIterable(fields)) {
+            String value = field.getValue();
+            if (skipEmpty && value.isEmpty()) {
+                continue;
+            }
+            int key = field.getIntKey();
+            int tag = key < copyTags.length ? copyTags[key] : key;
+            if (tag >= 0) {
+                tags.put(tag, stringtable.getStringId(value));
+            } else {
+                applyRule(tags, fieldRules[key], value);
+            }
+        }
+
+        if (overrides.length > 0 || removals.length > 0) {
+            applyTypeRules(tags, fields, tyyppi);
+        }
+    }
+
+    private boolean isKept(Int2IntMap tags, Int2ObjectMap<String> fields) {
+        for (int i = 0; i < keepKeys.length; i++) {
+            if (tags.get(keepKeys[i]) == keepValues[i] && !keepValueStrings[i].equals(fields.get(keepKeys[i]))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void applyTypeRules(Int2IntMap tags, Int2ObjectMap<String> fields, String tyyppi) {
+        for (TypeOverride override : overrides) {
+            if (override.tyyppi().equals(tyyppi) && override.value().equals(fields.get(override.field()))) {
+                putTags(tags, override.tags());
+            }
+        }
+        for (TypeRemoval removal : removals) {
+            if (removal.tyyppi().equals(tyyppi)) {
+                for (int key : removal.keys()) {
+                    tags.remove(key);
+                }
+            }
+        }
+    }
+
+    private void applyRule(Int2IntMap tags, FieldRule rule, String value) {
+        if (rule.onlyIfAbsent() && tags.containsKey(rule.tag())) {
+            return;
+        }
+        if (!rule.numeric()) {
+            tags.put(rule.tag(), rule.format() == DECIMAL ? decimalValueId(value) : stringtable.getStringId(value));
+            return;
+        }
+
+        int number = Integer.parseInt(value);
+        if (number > rule.max()) {
+            return;
+        }
+        int[] divisors = rule.divisors();
+        for (int i = 0; i < divisors.length; i++) {
+            if (number % divisors[i] == 0) {
+                putTags(tags, rule.classTags()[i]);
+                break;
+            }
+        }
+        if (number > 0) {
+            putTags(tags, rule.positive());
+        } else if (number < 0) {
+            putTags(tags, rule.negative());
+        }
+        tags.put(rule.tag(), rule.format() == MILLIMETRES ? millimetreValueId(number) : stringtable.getStringId(value));
+    }
+
+    private static void putTags(Int2IntMap tags, int[] pairs) {
+        for (int i = 0; i < pairs.length; i += 2) {
+            tags.put(pairs[i], pairs[i + 1]);
+        }
+    }
+
+    private int millimetreValueId(int millimetres) {
+        int id = millimetreValueIds.get(millimetres);
+        if (id < 0) {
+            id = stringtable.getStringId(String.format("%.1f", millimetres / 1000.0));
+            millimetreValueIds.put(millimetres, id);
+        }
+        return id;
+    }
+
+    private int decimalValueId(String value) {
+        int id = decimalValueIds.getInt(value);
+        if (id < 0) {
+            id = stringtable.getStringId(String.format("%.1f", Float.parseFloat(value)));
+            decimalValueIds.put(value, id);
+        }
+        return id;
+    }
+}
@@ -8,7 +8,8 @@ import it.unimi.dsi.fastutil.ints.Int2ObjectMap.Entry;
 import java.util.Arrays;
 
 class ShapeSyvyysTagHandler implements TagHandlerI {
-    private final ObjectOpenHashSet<String> wantedFields;
+    static final ObjectOpenHashSet<String> WANTED_FIELDS = new ObjectOpenHashSet<>(
+            Arrays.asList("VALDCO", "DEPTH"));
 
     private final StringTable stringtable;
 
@@ -20,14 +21,11 @@ class ShapeSyvyysTagHandler implements TagHandlerI {
         depthContour = stringtable.getStringId("VALDCO");
         depthSounding = stringtable.getStringId("DEPTH");
         ele = stringtable.getStringId("ele");
-
-        wantedFields = new ObjectOpenHashSet<>(
-                Arrays.asList("VALDCO", "DEPTH"));
     }
 
     @Override
     public ObjectOpenHashSet<String> getWantedFields() {
-        return this.wantedFields;
+        return WANTED_FIELDS;
     }
 
     @Override
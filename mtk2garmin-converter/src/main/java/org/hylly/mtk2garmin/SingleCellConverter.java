@@ -2,20 +2,35 @@ package org.hylly.mtk2garmin;
 
 import com.typesafe.config.Config;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import org.gdal.ogr.*;
 import org.gdal.osr.SpatialReference;
 
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
 
 public class SingleCellConverter {
+    private static final double SIMPLIFY_TOLERANCE = 0.5;
+    private static final int FEATURE_BATCH = 1024;
+
     private final boolean isValidCell;
     private final Logger logger = Logger.getLogger(SingleCellConverter.class.getName());
 
@@ -23,11 +38,8 @@ public class SingleCellConverter {
     private final ShapeFeaturePreprocess shapePreprocessor;
     private final MMLFeaturePreprocess featurePreprocessMML;
     private final GeomUtils geomUtils;
-    private final FeatureIDProvider featureIDProvider;
-    private final CachedAdditionalDataSources cachedDatasources;
+    private final AdditionalDataIndex additionalData;
     private final Config conf;
-    private final Driver memoryd = ogr.GetDriverByName("memory");
-    private final NodeCache nodeCache;
 
     private final String cell;
     private final String cellWithoutLetter;
@@ -38,106 +50,316 @@ public class SingleCellConverter {
 
     private final int tyyppi_string_id;
 
-    private final ShapeRetkeilyTagHandler retkeilyTagHandler;
-    private final ShapeSyvyysTagHandler syvyysTagHandler;
-    private final MMLTagHandler tagHandlerMML;
+    private final TagRules tagRules;
+    private final TagHandlerI retkeilyTagHandler;
+    private final TagHandlerI syvyysTagHandler;
+    private final TagHandlerI tagHandlerMML;
     private final StringTable stringtable;
+    private CellPrefetcher.CellInputs inputs;
 
-    private final Set<String> leftLetters = new HashSet<>(
+    private static final Set<String> leftLetters = new HashSet<>(
             Arrays.asList("A", "B", "C", "D"));
 
-    private final Set<String> rightLetters = new HashSet<>(
+    private static final Set<String> rightLetters = new HashSet<>(
             Arrays.asList("E", "F", "G", "H"));
 
-    private final Long2ObjectOpenHashMap<LightNode> nodes = new Long2ObjectOpenHashMap<>(50000);
-    private final Long2ObjectOpenHashMap<LightWay> ways = new Long2ObjectOpenHashMap<>(5000);
-    private final Long2ObjectOpenHashMap<LightRelation> relations = new Long2ObjectOpenHashMap<>(500);
-    private final OSMPBFWriter osmpbfWriter;
-    private GeomTransformer sphericToWGS;
-    private GeomTransformer srcToSphericMerc;
+    // Nodes are stored in creation order so that assignFeatureIDs can hand out the global ids exactly
+    // as a sequential run would. Ways and relations carry their cell-local id until then.
+    private final CellElementStore store = new CellElementStore(50000, 5000);
+    private final IntArrayList featureNodes = new IntArrayList();
+    private final Int2IntOpenHashMap scratchTags = new Int2IntOpenHashMap();
+    // Field values of the current feature, reused when features are committed as they are read
+    private final Int2ObjectOpenHashMap<String> scratchFields = new Int2ObjectOpenHashMap<>();
+    private final Int2ObjectOpenHashMap<String> integerStrings = new Int2ObjectOpenHashMap<>();
+    private final Map<String, String> layerTyyppi = new HashMap<>();
+    private final int typeStringId;
+    private final int multipolygonStringId;
+    private long localWayCount = 0;
+    private long localRelationCount = 0;
+    private List<AdditionalDataIndex.IndexedFeature> additionalFeatures;
+    private String sourceProj4;
+    private final String simplifier;
+    private final boolean streamingReader;
+    private final boolean javaGmlReader;
+    private final TopologyPreservingSimplifier javaSimplifier = new TopologyPreservingSimplifier(SIMPLIFY_TOLERANCE);
+    private final AtomicLong simplifiedCount = new AtomicLong();
+    private final AtomicLong simplifierDifferences = new AtomicLong();
+    private final double[] lonLat = new double[2];
+    private final CellStats stats;
+
+    // With a feature pool the features of the cell are prepared in batches on the pool, each pool thread with
+    // its own projection and simplifier state, and then committed to the store in reading order
+    private final ForkJoinPool featurePool;
+    private final List<Callable<PreparedFeature>> pendingFeatures = new ArrayList<>();
+    private final ThreadLocal<GeomUtils> poolGeomUtils = ThreadLocal.withInitial(GeomUtils::new);
+    private final ThreadLocal<TopologyPreservingSimplifier> poolSimplifiers = ThreadLocal.withInitial(() -> new TopologyPreservingSimplifier(SIMPLIFY_TOLERANCE));
+
+    // A feature after projection and simplification. Features prepared on the pool also carry the node hash
+    // and coordinates of every vertex, found by the coordinate array and index in it.
+    private record PreparedFeature(String lyrname, Int2ObjectOpenHashMap<String> fields, FlatGeometry flat, TagHandlerI tagHandler,
+                                   IdentityHashMap<double[], Integer> offsets, long[] hashes, double[] lonLats) {
+    }
 
     SingleCellConverter(
             File cellFile,
-            OSMPBFWriter osmpbfWriter,
-            StringTable stringtable,
             Config conf, HashMap<String, double[]> gridExtents,
             MMLFeaturePreprocess featurePreprocessMML,
             ShapeFeaturePreprocess shapePreprocessor,
             GeomUtils geomUtils,
-            FeatureIDProvider featureIDProvider, CachedAdditionalDataSources cachedDatasources, NodeCache nodeCache) {
+            AdditionalDataIndex additionalData,
+            TagRules tagRules,
+            ForkJoinPool featurePool) {
 
         this.cellFile = cellFile;
-        this.osmpbfWriter = osmpbfWriter;
         this.conf = conf;
         this.featurePreprocessMML = featurePreprocessMML;
         this.shapePreprocessor = shapePreprocessor;
         this.geomUtils = geomUtils;
-        this.featureIDProvider = featureIDProvider;
-        this.cachedDatasources = cachedDatasources;
-        this.nodeCache = nodeCache;
+        this.additionalData = additionalData;
+        this.tagRules = tagRules;
+        this.featurePool = featurePool;
+        this.simplifier = conf.hasPath("simplifier") ? conf.getString("simplifier") : "gdal";
+        if (!Set.of("gdal", "java", "compare").contains(simplifier)) {
+            throw new IllegalArgumentException("Unknown simplifier " + simplifier);
+        }
+        String featureReader = conf.hasPath("featureReader") ? conf.getString("featureReader") : "memory";
+        if (!Set.of("memory", "streaming").contains(featureReader)) {
+            throw new IllegalArgumentException("Unknown featureReader " + featureReader);
+        }
+        this.streamingReader = "streaming".equals(featureReader);
+        String gmlReader = conf.hasPath("gmlReader") ? conf.getString("gmlReader") : "gdal";
+        if (!Set.of("gdal", "java").contains(gmlReader)) {
+            throw new IllegalArgumentException("Unknown gmlReader " + gmlReader);
+        }
+        this.javaGmlReader = "java".equals(gmlReader);
 
 
-        this.stringtable = stringtable;
+        this.stringtable = new StringTable();
         this.tyyppi_string_id = stringtable.getStringId("tyyppi");
-        this.tagHandlerMML = new MMLTagHandler(stringtable);
-        this.retkeilyTagHandler = new ShapeRetkeilyTagHandler(stringtable);
-        this.syvyysTagHandler = new ShapeSyvyysTagHandler(stringtable);
+        this.typeStringId = stringtable.getStringId("type");
+        this.multipolygonStringId = stringtable.getStringId("multipolygon");
+        this.tagHandlerMML = tagRules.handler(TagRules.MML, stringtable);
+        this.retkeilyTagHandler = tagRules.handler(TagRules.RETKEILY, stringtable);
+        this.syvyysTagHandler = tagRules.handler(TagRules.SYVYYS, stringtable);
 
         String cellFileName = cellFile.getName();
-        cell = cellFileName.substring(cellFileName.lastIndexOf(File.separator) + 1, cellFileName.lastIndexOf(File.separator) + 7);
+        cell = cellOf(cellFile);
         cellWithoutLetter = cell.substring(0, cell.length() - 1);
         cellLetter = cell.substring(cell.length() - 1);
 
+        stats = new CellStats(cell);
         bbox = gridExtents.get(cell);
         this.isValidCell = bbox != null;
         logger.info(cellFileName + " (" + cell + " / " + cellWithoutLetter + " / " + cellLetter + "), extent: " + Arrays.toString(bbox));
 
     }
 
+    // Cell code of an MTK zip, its key in the grid extents
+    static String cellOf(File cellFile) {
+        String cellFileName = cellFile.getName();
+        return cellFileName.substring(cellFileName.lastIndexOf(File.separator) + 1, cellFileName.lastIndexOf(File.separator) + 7);
+    }
+
     void doConvert() throws IOException {
-        DataSource mtkds = readOGRsource(stringtable, startReadingOGRFile("/vsizip/" + cellFile.toString()), featurePreprocessMML, tagHandlerMML, null);
-        mtkds.delete();
+        stats.startStage(CellStats.Stage.MTK);
+        if (javaGmlReader) {
+            MTKGMLReader gmlReader = new MTKGMLReader(stringtable, tagHandlerMML.getWantedFields(), featurePreprocessMML);
+            MTKGMLReader.FeatureHandler handler = (layer, fields, geometry) -> handleFlatGeometry(layer, fields, geometry, MTKGMLReader.PROJ4, tagHandlerMML);
+            if (inputs != null) {
+                gmlReader.read(cellFile, inputs.getGmlFiles(), handler);
+            } else {
+                gmlReader.read(cellFile, handler);
+            }
+            logger.info("Read " + gmlReader.getFeatureCount() + " features from " + cellFile + ", " + gmlReader.getFilteredCount() + " filtered out");
+        } else {
+            DataSource mtkds = readOGRsource(stringtable, openSource(zipSource(cellFile, "/vsizip/" + cellFile.toString(), null)), featurePreprocessMML, tagHandlerMML, null);
+            mtkds.delete();
+        }
+        flushFeatures();
+        stats.endStage();
         printCounts();
 
-        File cellKrkPath = new File(Paths.get(conf.getString("kiinteistorajat"), cell.substring(0, 3)).toString());
-        File[] krkFiles = cellKrkPath.listFiles();
+        stats.startStage(CellStats.Stage.KRK);
+        List<File> krkFiles = getKrkFiles();
 
         if (krkFiles != null) {
             for (File krkf : krkFiles) {
                 String krkfn = krkf.getName();
-                if (!krkfn.startsWith(cellWithoutLetter)) continue;
                 String krkCell = krkfn.substring(krkfn.lastIndexOf(File.separator) + 1, krkfn.lastIndexOf(File.separator) + 7);
                 String krkCellLetter = krkCell.substring(krkCell.length() - 1);
 
-                if ("L".equals(cellLetter) && !leftLetters.contains(krkCellLetter)) continue;
-                if ("R".equals(cellLetter) && !rightLetters.contains(krkCellLetter)) continue;
-
-
                 logger.info("Adding KRK for cell " + cell + " from " + krkCell + " / " + krkCellLetter + "(" + krkf.getAbsolutePath() + ")");
-                DataSource krkds = readOGRsource(stringtable, startReadingOGRFile("/vsizip/" + krkf.getAbsolutePath() + "/" + krkCell + "_kiinteistoraja.shp"), shapePreprocessor, tagHandlerMML, bbox);
+                String krkShp = krkCell + "_kiinteistoraja.shp";
+                DataSource krkds = readOGRsource(stringtable, openSource(zipSource(krkf, "/vsizip/" + krkf.getAbsolutePath() + "/" + krkShp, krkShp)), shapePreprocessor, tagHandlerMML, bbox);
                 krkds.delete();
             }
+            flushFeatures();
+            stats.endStage();
             printCounts();
         } else {
+            stats.endStage();
             logger.warning("No krk exists for " + cell);
         }
 
-        cachedDatasources.getDatasources()
-                .forEach(cachedDatasource -> {
-                    DataSource extds = readOGRsource(stringtable, cachedDatasource, shapePreprocessor, getTagHandlerForDatasource(cachedDatasource), bbox);
-                    extds.delete();
-                    printCounts();
-                });
+        stats.startStage(CellStats.Stage.ADDITIONAL);
+        readAdditionalData(stringtable);
+        flushFeatures();
+        stats.endStage();
+        printCounts();
+        stats.setElementCounts(store.getNodeCount(), store.getWayCount(), store.getRelationCount());
 
-        osmpbfWriter.writeOSMPBFElements(stringtable, nodes, ways, relations);
+        if ("compare".equals(simplifier)) {
+            logger.info("Java simplifier differed from GDAL on " + simplifierDifferences.get() + " of " + simplifiedCount.get() + " features in cell " + cell);
+        }
     }
 
-    private TagHandlerI getTagHandlerForDatasource(DataSource ds) {
-        return switch (ds.GetLayer(0).GetName()) {
+    // The KRK zips whose parcels overlap this cell, null if there is no KRK directory for the cell
+    private List<File> getKrkFiles() {
+        return inputs != null ? inputs.getKrkFiles() : getKrkFiles(conf, cell);
+    }
+
+    static List<File> getKrkFiles(Config conf, String cell) {
+        String cellWithoutLetter = cell.substring(0, cell.length() - 1);
+        String cellLetter = cell.substring(cell.length() - 1);
+        File cellKrkPath = new File(Paths.get(conf.getString("kiinteistorajat"), cell.substring(0, 3)).toString());
+        File[] krkFiles = cellKrkPath.listFiles();
+        if (krkFiles == null) {
+            return null;
+        }
+
+        List<File> cellKrkFiles = new ArrayList<>();
+        for (File krkf : krkFiles) {
+            String krkfn = krkf.getName();
+            if (!krkfn.startsWith(cellWithoutLetter)) continue;
+            String krkCell = krkfn.substring(krkfn.lastIndexOf(File.separator) + 1, krkfn.lastIndexOf(File.separator) + 7);
+            String krkCellLetter = krkCell.substring(krkCell.length() - 1);
+
+            if ("L".equals(cellLetter) && !leftLetters.contains(krkCellLetter)) continue;
+            if ("R".equals(cellLetter) && !rightLetters.contains(krkCellLetter)) continue;
+            cellKrkFiles.add(krkf);
+        }
+        return cellKrkFiles;
+    }
+
+    // Content hash over everything the conversion of this cell reads: the MTK zip, the KRK zips, the
+    // additional data features of the cell, the settings that change the output and the converter itself
+    String fingerprint() throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        DataOutputStream out = new DataOutputStream(new DigestOutputStream(OutputStream.nullOutputStream(), digest));
+        out.writeInt(CellCache.FORMAT_VERSION);
+        out.writeUTF(CellCache.converterVersion());
+        out.writeUTF(cell);
+        out.writeUTF(simplifier);
+        out.writeBoolean(javaGmlReader);
+        out.writeUTF(tagRules.describe());
+
+        digestFile(out, cellFile);
+        List<File> krkFiles = getKrkFiles();
+        if (krkFiles != null) {
+            krkFiles.sort(Comparator.comparing(File::getName));
+            for (File krkf : krkFiles) {
+                out.writeUTF(krkf.getName());
+                digestFile(out, krkf);
+            }
+        }
+
+        // Converters without additional data, like the ones of the benchmark fixture, have none of it
+        additionalFeatures = additionalData != null ? additionalData.getFeatures(cell) : List.of();
+        for (AdditionalDataIndex.IndexedFeature feature : additionalFeatures) {
+            AdditionalDataIndex.IndexedLayer layer = feature.layer();
+            out.writeUTF(layer.name());
+            out.writeUTF(layer.proj4());
+            for (int i = 0; i < layer.fieldNames().length; i++) {
+                out.writeUTF(layer.fieldNames()[i]);
+                out.writeUTF(feature.fieldValues()[i]);
+            }
+            out.writeBoolean(feature.crossesEdge());
+            out.writeInt(feature.wkb().length);
+            out.write(feature.wkb());
+        }
+        out.flush();
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static void digestFile(DataOutputStream out, File file) throws IOException {
+        out.writeLong(file.length());
+        Files.copy(file.toPath(), out);
+    }
+
+    // Ids only depend on the data: way nodes get theirs from the coordinate hash, so the cells sharing a node
+    // agree on it without knowing of each other, and the merge writes it once.
+    void assignFeatureIDs() {
+        stats.startStage(CellStats.Stage.IDS);
+        int nodeCount = store.getNodeCount();
+        boolean[] referenced = new boolean[nodeCount];
+        for (int w = 0; w < store.getWayCount(); w++) {
+            for (int i = 0; i < store.getWayRefCount(w); i++) {
+                referenced[store.getWayRef(w, i)] = true;
+            }
+        }
+
+        // Way nodes are written once over all cells, and not only at the borders: additional data is read
+        // unclipped into every cell it crosses, so a cell can have a point merged into a way node that the
+        // other cells have untagged. Way nodes therefore never carry tags, a point merged into one is kept
+        // as a point of its own.
+        for (int n = 0; n < nodeCount; n++) {
+            if (referenced[n] && store.getNodeTags(n) != CellElementStore.NO_TAGS) {
+                store.detachNodeTags(n);
+            }
+        }
+
+        long pointCount = 0;
+        for (int n = 0; n < store.getNodeCount(); n++) {
+            if (n >= nodeCount || !referenced[n]) {
+                pointCount++;
+            }
+        }
+        long pointId = FeatureIDProvider.getPointIDBase(cell, pointCount);
+
+        for (int n = 0; n < store.getNodeCount(); n++) {
+            if (n >= nodeCount || !referenced[n]) {
+                store.setNodeId(n, pointId++);
+                continue;
+            }
+            store.setNodeId(n, FeatureIDProvider.getNodeID(store.getNodeHash(n)));
+        }
+
+        store.offsetWayIds(FeatureIDProvider.getWayIDBase(cell, localWayCount));
+        store.offsetRelationIds(FeatureIDProvider.getRelationIDBase(cell, localRelationCount));
+        stats.endStage();
+    }
+
+    OSMPBFWriter.CellRuns writeTo(OSMPBFWriter osmpbfWriter) throws IOException {
+        stats.startStage(CellStats.Stage.WRITE);
+        OSMPBFWriter.CellRuns runs = osmpbfWriter.writeOSMPBFElements(stringtable, store, stats);
+        stats.endStage();
+        return runs;
+    }
+
+    // Inputs read ahead by the prefetcher, used instead of the zips on disk
+    void usePrefetched(CellPrefetcher.CellInputs inputs) {
+        this.inputs = inputs;
+    }
+
+    CellStats getStats() {
+        return stats;
+    }
+
+    String getCell() {
+        return cell;
+    }
+
+    private TagHandlerI getTagHandlerForLayer(String layerName) {
+        return switch (layerName) {
             case "syvyyskayra_v", "syvyyspiste_p" -> syvyysTagHandler;
             case "kesaretkeilyreitit", "ulkoilureitit", "luontopolut", "point_dump" -> retkeilyTagHandler;
             default -> {
-                logger.severe("Unknown cached datasource ds name " + ds.GetLayer(0).GetName());
+                logger.severe("Unknown additional datasource layer name " + layerName);
                 yield null;
             }
         };
@@ -156,15 +378,36 @@ public class SingleCellConverter {
     }
 
 
-    private DataSource readOGRsource(StringTable stringtable, DataSource ods, FeaturePreprocessI featurePreprocess, TagHandlerI tagHandler,
+    // The staged copy of a zip entry when the cell was prefetched, the entry in the zip otherwise
+    private String zipSource(File zip, String zipPath, String entry) {
+        String staged = inputs != null ? inputs.stagedPath(zip, entry) : null;
+        return staged != null ? staged : zipPath;
+    }
+
+    // Streaming reads features straight from the source layers, which get the same filters and ignored
+    // fields as the memory copy. The copy reads the layers in the same order, so the result is identical.
+    private DataSource openSource(String fn) {
+        long start = System.nanoTime();
+        DataSource ds = startReadingOGRFile(fn);
+        ds = streamingReader ? ds : copyToMemory(ds);
+        stats.addPartNanos(CellStats.Part.OPEN, System.nanoTime() - start);
+        return ds;
+    }
+
+    private DataSource copyToMemory(DataSource ods) {
+        logger.info("Copying " + ods.getName() + " to memory");
+        DataSource ds = ogr.GetDriverByName("memory").CopyDataSource(ods, "mem_" + ods.getName());
+        logger.info("Copying " + ods.getName() + " to memory done!");
+        ods.delete();
+        return ds;
+    }
+
+    private DataSource readOGRsource(StringTable stringtable, DataSource ds, FeaturePreprocessI featurePreprocess, TagHandlerI tagHandler,
                                      double[] filterExtent) {
 
-        if (ods == null) {
+        if (ds == null) {
             return null;
         }
-        logger.info("Copying " + ods.getName() + " to memory");
-        DataSource ds = memoryd.CopyDataSource(ods, "mem_" + ods.getName());
-        logger.info("Copying " + ods.getName() + " to memory done!");
 
         String attributefilter = featurePreprocess.getAttributeFilterString();
 
@@ -182,20 +425,7 @@ public class SingleCellConverter {
                 lyr.SetAttributeFilter(attributefilter);
             }
 
-            FeatureDefn lyrdefn = lyr.GetLayerDefn();
-            ArrayList<Field> fieldMapping = new ArrayList<>();
-            for (int i1 = 0; i1 < lyrdefn.GetFieldCount(); i1++) {
-                FieldDefn fdefn = lyrdefn.GetFieldDefn(i1);
-                String fname = fdefn.GetName();
-
-                if (!tagHandler.getWantedFields().contains(fname)) {
-                    ignoredFields.add(fname);
-
-                } else {
-                    fieldMapping.add(new Field(fname, fdefn.GetFieldType(), i1));
-                }
-            }
-
+            ArrayList<Field> fieldMapping = getFieldMapping(lyr.GetLayerDefn(), tagHandler, ignoredFields);
 
             ignored_fields.addAll(ignoredFields);
             if (lyr.TestCapability(ogr.OLCIgnoreFields) && !ignoredFields.isEmpty()) {
@@ -229,198 +459,393 @@ public class SingleCellConverter {
 
     }
 
+    private void readAdditionalData(StringTable stringtable) throws IOException {
+        List<AdditionalDataIndex.IndexedFeature> features = additionalFeatures != null ? additionalFeatures : additionalData.getFeatures(cell);
+        logger.info(features.size() + " additional data features for cell " + cell);
+
+        Map<AdditionalDataIndex.IndexedLayer, SpatialReference> layerSrs = new HashMap<>();
+        Geometry cellExtent = null;
+
+        for (AdditionalDataIndex.IndexedFeature feature : features) {
+            AdditionalDataIndex.IndexedLayer layer = feature.layer();
+            Geometry geom = ogr.CreateGeometryFromWkb(feature.wkb());
+            stats.countNativeGeometries(1);
+
+            // Only features whose envelope crosses the cell edge need the exact test a spatial filter would do
+            if (feature.crossesEdge()) {
+                if (cellExtent == null) {
+                    stats.countNativeGeometries(1);
+                    cellExtent = ogr.CreateGeometryFromWkt(String.format(Locale.ROOT, "POLYGON ((%f %f, %f %f, %f %f, %f %f, %f %f))",
+                            bbox[0], bbox[2], bbox[1], bbox[2], bbox[1], bbox[3], bbox[0], bbox[3], bbox[0], bbox[2]));
+                }
+                if (!geom.Intersects(cellExtent)) {
+                    geom.delete();
+                    continue;
+                }
+            }
+
+            geom.AssignSpatialReference(layerSrs.computeIfAbsent(layer, l -> {
+                SpatialReference sref = new SpatialReference();
+                sref.ImportFromProj4(l.proj4());
+                return sref;
+            }));
+
+            Int2ObjectOpenHashMap<String> fields = new Int2ObjectOpenHashMap<>();
+            for (int i = 0; i < layer.fieldNames().length; i++) {
+                fields.put(stringtable.getStringId(layer.fieldNames()[i]), feature.fieldValues()[i]);
+            }
+
+            this.handleGeometry(stringtable, layer.name(), fields, geom, getTagHandlerForLayer(layer.name()));
+            geom.delete();
+        }
+        if (cellExtent != null) {
+            cellExtent.delete();
+        }
+    }
+
+    private ArrayList<Field> getFieldMapping(FeatureDefn lyrdefn, TagHandlerI tagHandler, Vector<String> ignoredFields) {
+        ArrayList<Field> fieldMapping = new ArrayList<>();
+        for (int i1 = 0; i1 < lyrdefn.GetFieldCount(); i1++) {
+            FieldDefn fdefn = lyrdefn.GetFieldDefn(i1);
+            String fname = fdefn.GetName();
+
+            if (!tagHandler.getWantedFields().contains(fname)) {
+                ignoredFields.add(fname);
+
+            } else {
+                fieldMapping.add(new Field(fname, fdefn.GetFieldType(), i1, stringtable.getStringId(fname)));
+            }
+        }
+        return fieldMapping;
+    }
+
     private void printCounts() {
-        System.out.println(nodes.size() + " nodes " + ways.size() + " ways " + relations.size() + " relations");
+        System.out.println(store.getNodeCount() + " nodes " + store.getWayCount() + " ways " + store.getRelationCount() + " relations");
+    }
+
+    StringTable getStringTable() {
+        return stringtable;
+    }
+
+    TagHandlerI getTagHandlerMML() {
+        return tagHandlerMML;
     }
 
     private boolean handleFeature(StringTable stringtable, String lyrname, ArrayList<Field> fieldMapping, Feature feat,
                                   TagHandlerI tagHandler) {
-        Int2ObjectOpenHashMap<String> fields = new Int2ObjectOpenHashMap<>();
-        Geometry geom;
-        for (Field f : fieldMapping) {
-            int fid = stringtable.getStringId(f.getFieldName());
-            String fname = feat.GetFieldAsString(f.getFieldIndex()).intern();
-            fields.put(fid, fname);
+        Int2ObjectOpenHashMap<String> fields;
+        if (featurePool == null) {
+            fields = scratchFields;
+            fields.clear();
+        } else {
+            fields = new Int2ObjectOpenHashMap<>();
+        }
+        for (int i = 0; i < fieldMapping.size(); i++) {
+            Field f = fieldMapping.get(i);
+            fields.put(f.getFieldId(), getFieldValue(feat, f));
         }
 
-        geom = feat.GetGeometryRef();
+        Geometry geom = feat.GetGeometryRef();
 
         if (geom == null) return true;
+        stats.countNativeGeometries(1);
+
+        boolean result = handleGeometry(stringtable, lyrname, fields, geom, tagHandler);
+        feat.delete();
+        return result;
+    }
 
-        if (sphericToWGS == null || srcToSphericMerc == null) {
-            SpatialReference sref = geom.GetSpatialReference();
-            sphericToWGS = this.geomUtils.spherictowgs;
-            srcToSphericMerc = this.geomUtils.getTransformationToSphereMercator(sref.ExportToProj4());
+    // Integer fields are read as numbers, their decimal strings are shared, GetFieldAsString gives the same text
+    private String getFieldValue(Feature feat, Field f) {
+        int index = f.getFieldIndex();
+        if (f.getFieldType() != ogr.OFTInteger) {
+            return feat.GetFieldAsString(index);
         }
+        if (!feat.IsFieldSetAndNotNull(index)) {
+            return "";
+        }
+        int value = feat.GetFieldAsInteger(index);
+        String s = integerStrings.get(value);
+        if (s == null) {
+            s = Integer.toString(value);
+            integerStrings.put(value, s);
+        }
+        return s;
+    }
 
-        geom = geom.Transform(srcToSphericMerc);
-        geom = geom.SimplifyPreserveTopology(0.5);
+    private boolean handleGeometry(StringTable stringtable, String lyrname, Int2ObjectOpenHashMap<String> fields, Geometry geom,
+                                   TagHandlerI tagHandler) {
 
-        GeomHandlerResult ghr;
+        if (sourceProj4 == null) {
+            sourceProj4 = geom.GetSpatialReference().ExportToProj4();
+        }
 
-        if (geom == null) return true;
+        handleFlatGeometry(lyrname, fields, FlatGeometry.fromGeometry(geom), sourceProj4, tagHandler);
+        return true;
+    }
+
+    void handleFlatGeometry(String lyrname, Int2ObjectOpenHashMap<String> fields, FlatGeometry flat, String proj4,
+                            TagHandlerI tagHandler) {
+        stats.countFeature();
+        if (featurePool == null) {
+            commitFeature(prepareFeature(lyrname, fields, flat, proj4, tagHandler, geomUtils, javaSimplifier, false));
+            return;
+        }
+        pendingFeatures.add(() -> prepareFeature(lyrname, fields, flat, proj4, tagHandler, poolGeomUtils.get(), poolSimplifiers.get(), true));
+        if (pendingFeatures.size() == FEATURE_BATCH) {
+            flushFeatures();
+        }
+    }
 
-        if (geom.GetGeometryCount() < 2) {
-            if (geom.GetGeometryCount() > 0) {
-                geom = geom.GetGeometryRef(0);
+    // Commits the features still waiting for the pool, must be called once all features are handled
+    void flushFeatures() {
+        if (featurePool == null || pendingFeatures.isEmpty()) {
+            return;
+        }
+        try {
+            for (Future<PreparedFeature> prepared : featurePool.invokeAll(pendingFeatures)) {
+                commitFeature(prepared.get());
             }
-            ghr = this.handleSingleGeom(geom);
-        } else {
-            ghr = this.handleMultiGeom(stringtable.getStringId("type"), stringtable.getStringId("multipolygon"), geom);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pendingFeatures.clear();
         }
-        double geomarea = geom.Area();
+    }
 
-        geom.delete();
-        feat.delete();
-        String tyyppi = lyrname.toLowerCase();
-        if (tyyppi.endsWith("kiinteistoraja")) tyyppi = "kiinteistoraja";
+    // Everything of a feature that does not touch the store, null when nothing of it is left
+    private PreparedFeature prepareFeature(String lyrname, Int2ObjectOpenHashMap<String> fields, FlatGeometry flat, String proj4,
+                                           TagHandlerI tagHandler, GeomUtils geomUtils, TopologyPreservingSimplifier javaSimplifier,
+                                           boolean withVertices) {
+        long start = System.nanoTime();
+        try {
+            return prepareGeometry(lyrname, fields, flat, proj4, tagHandler, geomUtils, javaSimplifier, withVertices);
+        } finally {
+            stats.addPartNanos(CellStats.Part.TRANSFORM, System.nanoTime() - start);
+        }
+    }
 
-        int tyyppi_value_id = stringtable.getStringId(tyyppi);
+    private PreparedFeature prepareGeometry(String lyrname, Int2ObjectOpenHashMap<String> fields, FlatGeometry flat, String proj4,
+                                            TagHandlerI tagHandler, GeomUtils geomUtils, TopologyPreservingSimplifier javaSimplifier,
+                                            boolean withVertices) {
+        geomUtils.transformToSphericMercator(flat, proj4);
+        flat = simplify(flat, javaSimplifier);
 
-        for (LightNode n : ghr.lightNodes) {
+        if (flat == null) return null;
+        if (!withVertices) {
+            return new PreparedFeature(lyrname, fields, flat, tagHandler, null, null, null);
+        }
 
-            if (!n.isWayPart()) {
-                n.addTag(tyyppi_string_id, tyyppi_value_id);
-                tagHandler.addElementTags(n.nodeTags, fields, tyyppi, geomarea);
+        int[] count = {0};
+        flat.forEachCoords(coords -> count[0] += coords.length / 2);
+        long[] hashes = new long[count[0]];
+        double[] lonLats = new double[2 * count[0]];
+        double[] vertexLonLat = new double[2];
+        IdentityHashMap<double[], Integer> offsets = new IdentityHashMap<>();
+        int[] next = {0};
+        flat.forEachCoords(coords -> {
+            offsets.put(coords, next[0]);
+            for (int i = 0; i < coords.length; i += 2) {
+                int v = next[0]++;
+                hashes[v] = geomUtils.hashCoords(coords[i], coords[i + 1]);
+                Projections.mercatorToGeographic(coords[i], coords[i + 1], vertexLonLat);
+                lonLats[2 * v] = vertexLonLat[0];
+                lonLats[2 * v + 1] = vertexLonLat[1];
             }
+        });
+        return new PreparedFeature(lyrname, fields, flat, tagHandler, offsets, hashes, lonLats);
+    }
 
-            if (!nodes.containsKey(n.getHash())) {
-                nodes.put(n.getHash(), n);
+    private void commitFeature(PreparedFeature prepared) {
+        if (prepared == null) return;
+
+        String lyrname = prepared.lyrname();
+        Int2ObjectOpenHashMap<String> fields = prepared.fields();
+        FlatGeometry flat = prepared.flat();
+        TagHandlerI tagHandler = prepared.tagHandler();
+
+        featureNodes.clear();
+        int firstWay = store.getWayCount();
+        int firstRelation = store.getRelationCount();
+
+        if (flat.getGeometryCount() < 2) {
+            if (flat.getGeometryCount() > 0) {
+                flat = flat.getGeometry(0);
             }
+            this.handleSingleGeom(flat, prepared);
+        } else {
+            this.handleMultiGeom(typeStringId, multipolygonStringId, flat, prepared);
         }
+        double geomarea = flat.area();
+
+        String tyyppi = layerTyyppi.computeIfAbsent(lyrname, SingleCellConverter::tyyppiOf);
 
-        for (LightWay w : ghr.lightWays) {
-            if (!w.getRole().equals("inner")) {
-                w.tags.put(tyyppi_string_id, tyyppi_value_id);
-                tagHandler.addElementTags(w.tags, fields, tyyppi, geomarea);
+        int tyyppi_value_id = stringtable.getStringId(tyyppi);
+
+        // Untagged nodes and all outer ways of a feature get the same tags, so they share one tag set
+        int featureTags = CellElementStore.NO_TAGS;
+        boolean featureTagsDone = false;
+
+        for (int i = 0; i < featureNodes.size(); i++) {
+            int n = featureNodes.getInt(i);
+            if (store.isNodeWayPart(n)) {
+                continue;
             }
-            if (!ways.containsKey(w.getId())) {
-                ways.put(w.getId(), w);
+            int nodeTags = store.getNodeTags(n);
+            if (nodeTags == CellElementStore.NO_TAGS) {
+                if (!featureTagsDone) {
+                    featureTags = buildTags(CellElementStore.NO_TAGS, tyyppi_value_id, fields, tyyppi, geomarea, tagHandler);
+                    featureTagsDone = true;
+                }
+                store.setNodeTags(n, featureTags);
+            } else {
+                store.setNodeTags(n, buildTags(nodeTags, tyyppi_value_id, fields, tyyppi, geomarea, tagHandler));
             }
         }
 
-        for (LightRelation r : ghr.lightRelations) {
-
-            r.tags.put(tyyppi_string_id, tyyppi_value_id);
-            tagHandler.addElementTags(r.tags, fields, tyyppi, geomarea);
-            if (!relations.containsKey(r.getId()))
-                relations.put(r.getId(), r);
+        for (int w = firstWay; w < store.getWayCount(); w++) {
+            if (store.getWayRole(w) == CellElementStore.ROLE_INNER) {
+                continue;
+            }
+            if (!featureTagsDone) {
+                featureTags = buildTags(CellElementStore.NO_TAGS, tyyppi_value_id, fields, tyyppi, geomarea, tagHandler);
+                featureTagsDone = true;
+            }
+            store.setWayTags(w, featureTags);
         }
 
-        return true;
+        for (int r = firstRelation; r < store.getRelationCount(); r++) {
+            int relationTags = buildTags(store.getRelationTags(r), tyyppi_value_id, fields, tyyppi, geomarea, tagHandler);
+            store.setRelationTags(r, relationTags);
+        }
+    }
 
+    private static String tyyppiOf(String lyrname) {
+        String tyyppi = lyrname.toLowerCase();
+        if (tyyppi.endsWith("kiinteistoraja")) tyyppi = "kiinteistoraja";
+        return tyyppi;
     }
 
-    private GeomHandlerResult handleSingleGeom(Geometry geom) {
+    private int buildTags(int existingTags, int tyyppi_value_id, Int2ObjectOpenHashMap<String> fields, String tyyppi, double geomarea,
+                          TagHandlerI tagHandler) {
+        long start = System.nanoTime();
+        scratchTags.clear();
+        store.loadTagSet(existingTags, scratchTags);
+        scratchTags.put(tyyppi_string_id, tyyppi_value_id);
+        tagHandler.addElementTags(scratchTags, fields, tyyppi, geomarea);
+        int tagSet = store.addTagSet(scratchTags);
+        stats.addPartNanos(CellStats.Part.TAGS, System.nanoTime() - start);
+        return tagSet;
+    }
 
-        GeomHandlerResult ghr = new GeomHandlerResult();
+    private FlatGeometry simplify(FlatGeometry geom, TopologyPreservingSimplifier javaSimplifier) {
+        switch (simplifier) {
+            case "java" -> {
+                return javaSimplifier.simplify(geom);
+            }
+            case "compare" -> {
+                FlatGeometry gdalResult = simplifyWithGDAL(geom);
+                FlatGeometry javaResult = javaSimplifier.simplify(geom);
+                simplifiedCount.incrementAndGet();
+                if (gdalResult == null || !gdalResult.sameAs(javaResult)) {
+                    simplifierDifferences.incrementAndGet();
+                }
+                return gdalResult;
+            }
+            default -> {
+                return simplifyWithGDAL(geom);
+            }
+        }
+    }
 
-        Geometry wgsgeom = geom.Transform(sphericToWGS);
-        if (geom.IsEmpty() || wgsgeom.IsEmpty()) {
-            return ghr;
+    private FlatGeometry simplifyWithGDAL(FlatGeometry geom) {
+        Geometry mercGeom = ogr.CreateGeometryFromWkb(geom.toWkb());
+        Geometry simplified = mercGeom.SimplifyPreserveTopology(SIMPLIFY_TOLERANCE);
+        stats.countNativeGeometries(simplified == null ? 1 : 2);
+        mercGeom.delete();
+        if (simplified == null) {
+            return null;
         }
+        FlatGeometry result = FlatGeometry.fromWkb(simplified.ExportToWkb());
+        simplified.delete();
+        return result;
+    }
 
-        boolean isPoint = geom.GetGeometryType() == ogr.wkbPoint || geom.GetGeometryType() == ogr.wkbPoint25D;
+    private int handleSingleGeom(FlatGeometry geom, PreparedFeature prepared) {
 
-        LightWay w = null;
-        long wid;
-        if (!isPoint) {
-            wid = featureIDProvider.getWayID();
-            w = new LightWay(wid);
+        if (geom.isEmpty()) {
+            return -1;
         }
 
-        for (int i = 0; i < geom.GetPointCount(); i++) {
-
-            long phash = geomUtils.hashCoords(geom.GetX(i), geom.GetY(i));
-            int pcell = geomUtils.xy2grid(geom.GetX(i), geom.GetY(i));
+        boolean isPoint = geom.type == FlatGeometry.POINT;
 
-            if (!nodes.containsKey(phash)) {
-                nodeCache.ensureGrid(pcell);
+        int w = -1;
+        if (!isPoint) {
+            w = store.addWay(localWayCount++, CellElementStore.ROLE_ALL);
+        }
 
-                Optional<Long> cachedNodeId = nodeCache.getNodeId(pcell,phash);
+        int firstVertex = prepared.offsets() != null && geom.getPointCount() > 0 ? prepared.offsets().get(geom.coords) : 0;
+        for (int i = 0; i < geom.getPointCount(); i++) {
 
-                long nodeID;
-                if (cachedNodeId.isPresent()) {
-                    nodeID = cachedNodeId.get();
-                } else {
-                    nodeID = featureIDProvider.getNodeID();
-                    if (this.nodeNearCellBorder(geom.GetPoint(i))) {
-                        nodeCache.addNodeId(pcell, phash, nodeID);
-                    }
-                }
+            double x = geom.getX(i);
+            double y = geom.getY(i);
+            int v = firstVertex + i;
+            long phash = prepared.hashes() != null ? prepared.hashes()[v] : geomUtils.hashCoords(x, y);
+            int n = store.findNode(phash);
 
-                LightNode n = new LightNode(nodeID, phash, wgsgeom.GetX(i), wgsgeom.GetY(i), !isPoint);
-                nodes.put(phash, n);
-                ghr.lightNodes.add(n);
+            if (n < 0 && prepared.hashes() != null) {
+                n = store.addNode(phash, prepared.lonLats()[2 * v], prepared.lonLats()[2 * v + 1], !isPoint);
+            } else if (n < 0) {
+                Projections.mercatorToGeographic(x, y, lonLat);
+                n = store.addNode(phash, lonLat[0], lonLat[1], !isPoint);
             } else {
-                LightNode n = nodes.get(phash);
-                n.wayPart = !isPoint;
-                ghr.lightNodes.add(n);
+                store.setNodeWayPart(n, !isPoint);
             }
+            featureNodes.add(n);
             if (!isPoint) {
-                w.refs.add(phash);
+                store.addWayRef(n);
             }
         }
 
-        if (w != null) {
-            ghr.lightWays.add(w);
-        }
-
-        return ghr;
-
-    }
-
+        return w;
 
-    private boolean nodeNearCellBorder(double[] srcpoints) {
-        double dist = this.calculateMinNodeCellBorderDistance(srcpoints[0], srcpoints[1]);
-        return Math.abs(dist) < 2;
     }
 
-    private double calculateMinNodeCellBorderDistance(double x, double y) {
-        return Math.min(Math.abs(this.bbox[0] - x),
-                Math.min(Math.abs(this.bbox[2] - y), Math.min(Math.abs(this.bbox[1] - x), Math.abs(this.bbox[3] - y))));
-    }
 
-    private GeomHandlerResult handleMultiGeom(int type, int multipolygon, Geometry geom) {
 
-        GeomHandlerResult ighr;
-        Geometry igeom;
-        GeomHandlerResult ghr = new GeomHandlerResult();
+    private void handleMultiGeom(int type, int multipolygon, FlatGeometry geom, PreparedFeature prepared) {
 
-        if (!geom.GetGeometryName().equals("POLYGON")) {
-            for (int i = 0; i < geom.GetGeometryCount(); i++) {
-                igeom = geom.GetGeometryRef(i);
-                ighr = this.handleSingleGeom(igeom);
-                ghr.lightNodes.addAll(ighr.lightNodes);
-                ghr.lightWays.addAll(ighr.lightWays);
+        if (geom.type != FlatGeometry.POLYGON) {
+            for (int i = 0; i < geom.getGeometryCount(); i++) {
+                this.handleSingleGeom(geom.getGeometry(i), prepared);
             }
-            return ghr;
+            return;
         }
 
-        long rid = featureIDProvider.getRelationID();
-        LightRelation r = new LightRelation();
-        r.setId(rid);
-        r.tags.put(type, multipolygon);
-
-        for (int i = 0; i < geom.GetGeometryCount(); i++) {
-            igeom = geom.GetGeometryRef(i);
-
-            ighr = this.handleSingleGeom(igeom);
-            if (ighr.lightWays.isEmpty()) {
-                return new GeomHandlerResult();
+        int firstWay = store.getWayCount();
+        int rings = geom.getGeometryCount();
+        long relationLocalId = localRelationCount++;
+
+        for (int i = 0; i < rings; i++) {
+            int w = this.handleSingleGeom(geom.getGeometry(i), prepared);
+            if (w < 0) {
+                // The ids handed out so far stay used so that the numbering matches a run without this polygon
+                store.truncateWays(firstWay);
+                featureNodes.clear();
+                return;
             }
-            String role = i == 0 ? "outer" : "inner";
-            ighr.lightWays.getFirst().setRole(role);
-
-            ghr.lightNodes.addAll(ighr.lightNodes);
-            ghr.lightWays.addAll(ighr.lightWays);
-
-            LightRelationMember rm = new LightRelationMember(ighr.lightWays.getFirst().getId(), role);
-            r.members.add(rm);
+            store.setWayRole(w, i == 0 ? CellElementStore.ROLE_OUTER : CellElementStore.ROLE_INNER);
         }
 
-        ghr.lightRelations.add(r);
-        return ghr;
+        scratchTags.clear();
+        scratchTags.put(type, multipolygon);
+        store.addRelation(relationLocalId, store.addTagSet(scratchTags));
+        for (int i = 0; i < rings; i++) {
+            store.addRelationMember(firstWay + i);
+        }
 
     }
 
@@ -10,23 +10,27 @@ class StringTable {
 
     StringTable() {
         stringTable.add("");
+        stringTableTranslate.defaultReturnValue(-1);
     }
 
     int getStringId(String stringKey) {
-        if (!this.stringTableTranslate.containsKey(stringKey)) {
-            int newIndex = this.stringTable.size();
-            this.stringTableTranslate.put(stringKey, newIndex);
-            this.stringTable.add(newIndex, stringKey);
-            return newIndex;
-        } else {
-            return this.stringTableTranslate.getInt(stringKey);
+        int index = this.stringTableTranslate.getInt(stringKey);
+        if (index < 0) {
+            index = this.stringTable.size();
+            this.stringTableTranslate.put(stringKey, index);
+            this.stringTable.add(stringKey);
         }
+        return index;
     }
 
     String getStringById(int id) {
         return this.stringTable.get(id);
     }
 
+    int size() {
+        return this.stringTable.size();
+    }
+
 
     public void clear() {
         this.stringTableTranslate.clear();
@@ -0,0 +1,58 @@
+package org.hylly.mtk2garmin;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigParseOptions;
+import com.typesafe.config.ConfigRenderOptions;
+
+import java.io.File;
+
+/*
+ * Field to tag mapping of the sources. The rules are read once, from the tagrules.conf bundled with the
+ * converter or the file of the tagRules setting, and every cell converter compiles them against its own
+ * string table. tagMapping = builtin uses the hand written tag handlers instead.
+ */
+class TagRules {
+    static final String MML = "mml";
+    static final String SYVYYS = "syvyys";
+    static final String RETKEILY = "retkeily";
+
+    // null with the builtin handlers
+    private final Config rules;
+
+    private TagRules(Config rules) {
+        this.rules = rules;
+    }
+
+    static TagRules fromConfig(Config conf) {
+        String mode = conf.hasPath("tagMapping") ? conf.getString("tagMapping") : "rules";
+        ConfigParseOptions options = ConfigParseOptions.defaults().setAllowMissing(false);
+        return switch (mode) {
+            case "rules" -> new TagRules(conf.hasPath("tagRules")
+                    ? ConfigFactory.parseFile(new File(conf.getString("tagRules")), options).resolve()
+                    : ConfigFactory.parseResources(TagRules.class, "/tagrules.conf", options).resolve());
+            case "builtin" -> new TagRules(null);
+            default -> throw new IllegalArgumentException("Unknown tagMapping " + mode + ", expected rules or builtin");
+        };
+    }
+
+    TagHandlerI handler(String source, StringTable stringtable) {
+        if (rules == null) {
+            return switch (source) {
+                case MML -> new MMLTagHandler(stringtable);
+                case SYVYYS -> new ShapeSyvyysTagHandler(stringtable);
+                case RETKEILY -> new ShapeRetkeilyTagHandler(stringtable);
+                default -> throw new IllegalArgumentException("No tag handler for " + source);
+            };
+        }
+        if (!rules.hasPath(source)) {
+            throw new IllegalArgumentException("No tag rules for " + source);
+        }
+        return new RuleTagHandler(rules.getConfig(source), stringtable);
+    }
+
+    // Part of the cell fingerprint, cached cells are converted again when the rules change
+    String describe() {
+        return rules == null ? "builtin" : rules.root().render(ConfigRenderOptions.concise());
+    }
+}
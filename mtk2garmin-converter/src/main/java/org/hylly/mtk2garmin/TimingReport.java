@@ -0,0 +1,130 @@
+package org.hylly.mtk2garmin;
+
+import com.typesafe.config.Config;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.logging.Logger;
+
+/*
+ * Per cell timing report, one row per converted cell as soon as it has been written. A file ending in .csv
+ * gets a header and comma separated values, anything else gets one JSON object per line. Times are in
+ * milliseconds, -1 when the JVM does not measure them.
+ */
+class TimingReport implements AutoCloseable {
+    private final Logger logger = Logger.getLogger(TimingReport.class.getName());
+    private final BufferedWriter out;
+    private final boolean csv;
+
+    static Optional<TimingReport> fromConfig(Config conf) throws IOException {
+        if (!conf.hasPath("timingReport")) {
+            return Optional.empty();
+        }
+        return Optional.of(new TimingReport(Paths.get(conf.getString("timingReport"))));
+    }
+
+    TimingReport(Path file) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        this.out = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+        this.csv = file.getFileName().toString().endsWith(".csv");
+        if (csv) {
+            out.write(String.join(",", csvHeader()));
+            out.newLine();
+        }
+        logger.info("Writing cell timings to " + file);
+    }
+
+    private static List<String> csvHeader() {
+        List<String> columns = new ArrayList<>(List.of("cell", "features", "native_geometries", "nodes", "ways", "relations", "encoded_bytes"));
+        for (CellStats.Stage stage : CellStats.Stage.values()) {
+            String name = stage.name().toLowerCase(Locale.ROOT);
+            columns.add(name + "_wall_ms");
+            columns.add(name + "_cpu_ms");
+            columns.add(name + "_allocated_bytes");
+        }
+        for (CellStats.Part part : CellStats.Part.values()) {
+            columns.add(part.name().toLowerCase(Locale.ROOT) + "_ms");
+        }
+        columns.addAll(List.of("total_wall_ms", "features_per_s", "nodes_per_s", "ways_per_s"));
+        return columns;
+    }
+
+    synchronized void write(CellStats stats) throws IOException {
+        out.write(csv ? csvRow(stats) : jsonRow(stats));
+        out.newLine();
+        // Rows of finished cells survive a run that dies later on
+        out.flush();
+    }
+
+    private static String csvRow(CellStats stats) {
+        List<String> values = new ArrayList<>(List.of(stats.getCell(), Long.toString(stats.getFeatures()),
+                Long.toString(stats.getNativeGeometries()), Long.toString(stats.getNodes()), Long.toString(stats.getWays()),
+                Long.toString(stats.getRelations()), Long.toString(stats.getEncodedBytes())));
+        for (CellStats.Stage stage : CellStats.Stage.values()) {
+            values.add(millis(stats.getWallNanos(stage)));
+            values.add(millis(stats.getCpuNanos(stage)));
+            values.add(Long.toString(stats.getAllocatedBytes(stage)));
+        }
+        for (CellStats.Part part : CellStats.Part.values()) {
+            values.add(millis(stats.getPartNanos(part)));
+        }
+        values.add(millis(stats.getTotalWallNanos()));
+        values.add(rate(stats.perSecond(stats.getFeatures())));
+        values.add(rate(stats.perSecond(stats.getNodes())));
+        values.add(rate(stats.perSecond(stats.getWays())));
+        return String.join(",", values);
+    }
+
+    private static String jsonRow(CellStats stats) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"cell\":\"").append(stats.getCell()).append('"')
+                .append(",\"features\":").append(stats.getFeatures())
+                .append(",\"nativeGeometries\":").append(stats.getNativeGeometries())
+                .append(",\"nodes\":").append(stats.getNodes())
+                .append(",\"ways\":").append(stats.getWays())
+                .append(",\"relations\":").append(stats.getRelations())
+                .append(",\"encodedBytes\":").append(stats.getEncodedBytes())
+                .append(",\"stages\":{");
+        for (CellStats.Stage stage : CellStats.Stage.values()) {
+            json.append(stage.ordinal() > 0 ? "," : "").append('"').append(stage.name().toLowerCase(Locale.ROOT)).append("\":{")
+                    .append("\"wallMs\":").append(millis(stats.getWallNanos(stage)))
+                    .append(",\"cpuMs\":").append(millis(stats.getCpuNanos(stage)))
+                    .append(",\"allocatedBytes\":").append(stats.getAllocatedBytes(stage))
+                    .append('}');
+        }
+        json.append("},\"parts\":{");
+        for (CellStats.Part part : CellStats.Part.values()) {
+            json.append(part.ordinal() > 0 ? "," : "").append('"').append(part.name().toLowerCase(Locale.ROOT)).append("Ms\":")
+                    .append(millis(stats.getPartNanos(part)));
+        }
+        json.append("},\"totalWallMs\":").append(millis(stats.getTotalWallNanos()))
+                .append(",\"featuresPerSecond\":").append(rate(stats.perSecond(stats.getFeatures())))
+                .append(",\"nodesPerSecond\":").append(rate(stats.perSecond(stats.getNodes())))
+                .append(",\"waysPerSecond\":").append(rate(stats.perSecond(stats.getWays())))
+                .append('}');
+        return json.toString();
+    }
+
+    private static String millis(long nanos) {
+        return nanos < 0 ? "-1" : String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String rate(double perSecond) {
+        return String.format(Locale.ROOT, "%.1f", perSecond);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
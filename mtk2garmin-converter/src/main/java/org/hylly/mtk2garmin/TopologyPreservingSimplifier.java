@@ -0,0 +1,351 @@
+package org.hylly.mtk2garmin;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Douglas-Peucker simplification on FlatGeometry arrays with the topology guards of GEOS'
+ * TopologyPreservingSimplifier, which is what OGR's SimplifyPreserveTopology runs: a section is only
+ * replaced by a single segment if that segment does not cross any remaining input segment or any
+ * already simplified segment of the same geometry, and rings keep at least four points.
+ *
+ * Instances are not thread safe, but simplify has no other state, so every thread can use its own.
+ */
+class TopologyPreservingSimplifier {
+    private final double tolerance;
+
+    private final List<double[]> lines = new ArrayList<>();
+    private final IntArrayList minimumSizes = new IntArrayList();
+    private final List<double[]> results = new ArrayList<>();
+
+    private SegmentIndex inputIndex;
+    private SegmentIndex outputIndex;
+    // Start offset of every line in the input segment numbering, and which input segments are still present
+    private int[] lineSegmentOffset;
+    private boolean[] removedInput;
+
+    private double[] resultPoints;
+    private int resultSize;
+
+    TopologyPreservingSimplifier(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    FlatGeometry simplify(FlatGeometry geom) {
+        lines.clear();
+        minimumSizes.clear();
+        results.clear();
+        collectLines(geom);
+        if (lines.isEmpty()) {
+            return geom.copy();
+        }
+
+        int segmentCount = 0;
+        lineSegmentOffset = new int[lines.size()];
+        for (int l = 0; l < lines.size(); l++) {
+            lineSegmentOffset[l] = segmentCount;
+            segmentCount += Math.max(0, lines.get(l).length / 2 - 1);
+        }
+        removedInput = new boolean[segmentCount];
+
+        double[] extent = extent(lines);
+        inputIndex = new SegmentIndex(extent, segmentCount);
+        outputIndex = new SegmentIndex(extent, segmentCount);
+        for (int l = 0; l < lines.size(); l++) {
+            double[] pts = lines.get(l);
+            for (int s = 0; s < pts.length / 2 - 1; s++) {
+                inputIndex.add(lineSegmentOffset[l] + s, pts[2 * s], pts[2 * s + 1], pts[2 * s + 2], pts[2 * s + 3]);
+            }
+        }
+
+        for (int l = 0; l < lines.size(); l++) {
+            results.add(simplifyLine(l));
+        }
+
+        int[] next = {0};
+        return geom.mapCoords(coords -> results.get(next[0]++));
+    }
+
+    private void collectLines(FlatGeometry geom) {
+        if (geom.type == FlatGeometry.LINESTRING || geom.type == FlatGeometry.LINEARRING) {
+            lines.add(geom.coords);
+            minimumSizes.add(geom.type == FlatGeometry.LINEARRING ? 4 : 2);
+        } else if (geom.type == FlatGeometry.POINT) {
+            // Points are collected so that mapCoords visits the same sequence, but they are never simplified
+            lines.add(geom.coords);
+            minimumSizes.add(Integer.MAX_VALUE);
+        } else {
+            for (int i = 0; i < geom.getGeometryCount(); i++) {
+                collectLines(geom.getGeometry(i));
+            }
+        }
+    }
+
+    private double[] simplifyLine(int line) {
+        double[] pts = lines.get(line);
+        int points = pts.length / 2;
+        if (points < 2 || minimumSizes.getInt(line) == Integer.MAX_VALUE) {
+            return pts.clone();
+        }
+
+        resultPoints = new double[pts.length];
+        resultSize = 0;
+        resultPoints[resultSize++] = pts[0];
+        resultPoints[resultSize++] = pts[1];
+
+        // Sections are processed depth first, left before right, like the recursive formulation
+        IntArrayList sections = new IntArrayList();
+        sections.add(0);
+        sections.add(points - 1);
+        sections.add(0);
+        while (!sections.isEmpty()) {
+            int depth = sections.popInt();
+            int j = sections.popInt();
+            int i = sections.popInt();
+            int furthest = simplifySection(line, pts, i, j, depth);
+            if (furthest >= 0) {
+                sections.add(furthest);
+                sections.add(j);
+                sections.add(depth + 1);
+                sections.add(i);
+                sections.add(furthest);
+                sections.add(depth + 1);
+            }
+        }
+
+        double[] result = new double[resultSize];
+        System.arraycopy(resultPoints, 0, result, 0, resultSize);
+        return result;
+    }
+
+    // Returns the point to split the section at, or -1 if the section was added to the result
+    private int simplifySection(int line, double[] pts, int i, int j, int depth) {
+        depth++;
+        if (i + 1 == j) {
+            addToResult(pts, j);
+            return -1;
+        }
+
+        boolean valid = true;
+        int resultPointCount = resultSize / 2 == 1 ? 0 : resultSize / 2;
+        if (resultPointCount < minimumSizes.getInt(line) && depth + 1 < minimumSizes.getInt(line)) {
+            valid = false;
+        }
+
+        double maxDistance = -1;
+        int furthest = i;
+        for (int k = i + 1; k < j; k++) {
+            double distance = segmentDistance(pts[2 * k], pts[2 * k + 1], pts[2 * i], pts[2 * i + 1], pts[2 * j], pts[2 * j + 1]);
+            if (distance > maxDistance) {
+                maxDistance = distance;
+                furthest = k;
+            }
+        }
+        if (maxDistance > tolerance) {
+            valid = false;
+        }
+
+        double x0 = pts[2 * i], y0 = pts[2 * i + 1], x1 = pts[2 * j], y1 = pts[2 * j + 1];
+        if (valid && hasBadIntersection(line, i, j, x0, y0, x1, y1)) {
+            valid = false;
+        }
+
+        if (valid) {
+            int firstSegment = lineSegmentOffset[line] + i;
+            for (int s = firstSegment; s < firstSegment + (j - i); s++) {
+                removedInput[s] = true;
+            }
+            outputIndex.add(outputIndex.size(), x0, y0, x1, y1);
+            addToResult(pts, j);
+            return -1;
+        }
+
+        return furthest;
+    }
+
+    private void addToResult(double[] pts, int point) {
+        resultPoints[resultSize++] = pts[2 * point];
+        resultPoints[resultSize++] = pts[2 * point + 1];
+    }
+
+    private boolean hasBadIntersection(int line, int i, int j, double x0, double y0, double x1, double y1) {
+        if (outputIndex.anyMatch(x0, y0, x1, y1, (id, s) -> hasInteriorIntersection(s, x0, y0, x1, y1))) {
+            return true;
+        }
+        int sectionStart = lineSegmentOffset[line] + i;
+        int sectionEnd = lineSegmentOffset[line] + j;
+        return inputIndex.anyMatch(x0, y0, x1, y1, (id, s) ->
+                !removedInput[id] && (id < sectionStart || id >= sectionEnd) && hasInteriorIntersection(s, x0, y0, x1, y1));
+    }
+
+    // True if the segments intersect in a point that is not an endpoint of both of them
+    static boolean hasInteriorIntersection(double[] s, double qx0, double qy0, double qx1, double qy1) {
+        double px0 = s[0], py0 = s[1], px1 = s[2], py1 = s[3];
+        if (Math.max(px0, px1) < Math.min(qx0, qx1) || Math.max(qx0, qx1) < Math.min(px0, px1)
+                || Math.max(py0, py1) < Math.min(qy0, qy1) || Math.max(qy0, qy1) < Math.min(py0, py1)) {
+            return false;
+        }
+
+        int pq0 = orientation(px0, py0, px1, py1, qx0, qy0);
+        int pq1 = orientation(px0, py0, px1, py1, qx1, qy1);
+        int qp0 = orientation(qx0, qy0, qx1, qy1, px0, py0);
+        int qp1 = orientation(qx0, qy0, qx1, qy1, px1, py1);
+
+        if (pq0 * pq1 > 0 || qp0 * qp1 > 0) {
+            return false;
+        }
+        if (pq0 == 0 && pq1 == 0 && qp0 == 0 && qp1 == 0) {
+            // Collinear: the overlap consists of the endpoints lying on the other segment
+            return isInteriorPoint(px0, py0, s, qx0, qy0, qx1, qy1, onSegment(qx0, qy0, qx1, qy1, px0, py0))
+                    || isInteriorPoint(px1, py1, s, qx0, qy0, qx1, qy1, onSegment(qx0, qy0, qx1, qy1, px1, py1))
+                    || isInteriorPoint(qx0, qy0, s, qx0, qy0, qx1, qy1, onSegment(px0, py0, px1, py1, qx0, qy0))
+                    || isInteriorPoint(qx1, qy1, s, qx0, qy0, qx1, qy1, onSegment(px0, py0, px1, py1, qx1, qy1));
+        }
+        if (pq0 != 0 && pq1 != 0 && qp0 != 0 && qp1 != 0) {
+            // Proper crossing, the intersection is inside both segments
+            return true;
+        }
+        // Touching: the intersection is the endpoint that lies on the other segment
+        if (pq0 == 0) {
+            return isInteriorPoint(qx0, qy0, s, qx0, qy0, qx1, qy1, true);
+        }
+        if (pq1 == 0) {
+            return isInteriorPoint(qx1, qy1, s, qx0, qy0, qx1, qy1, true);
+        }
+        if (qp0 == 0) {
+            return isInteriorPoint(px0, py0, s, qx0, qy0, qx1, qy1, true);
+        }
+        return isInteriorPoint(px1, py1, s, qx0, qy0, qx1, qy1, true);
+    }
+
+    private static boolean isInteriorPoint(double x, double y, double[] s, double qx0, double qy0, double qx1, double qy1, boolean intersects) {
+        if (!intersects) {
+            return false;
+        }
+        boolean endpointOfP = x == s[0] && y == s[1] || x == s[2] && y == s[3];
+        boolean endpointOfQ = x == qx0 && y == qy0 || x == qx1 && y == qy1;
+        return !endpointOfP || !endpointOfQ;
+    }
+
+    private static boolean onSegment(double x0, double y0, double x1, double y1, double x, double y) {
+        return x >= Math.min(x0, x1) && x <= Math.max(x0, x1) && y >= Math.min(y0, y1) && y <= Math.max(y0, y1);
+    }
+
+    private static int orientation(double x0, double y0, double x1, double y1, double x, double y) {
+        double det = (x1 - x0) * (y - y0) - (y1 - y0) * (x - x0);
+        return det > 0 ? 1 : det < 0 ? -1 : 0;
+    }
+
+    private static double segmentDistance(double x, double y, double x0, double y0, double x1, double y1) {
+        double dx = x1 - x0;
+        double dy = y1 - y0;
+        double lengthSquared = dx * dx + dy * dy;
+        if (lengthSquared == 0) {
+            return Math.hypot(x - x0, y - y0);
+        }
+        double r = ((x - x0) * dx + (y - y0) * dy) / lengthSquared;
+        if (r <= 0) {
+            return Math.hypot(x - x0, y - y0);
+        }
+        if (r >= 1) {
+            return Math.hypot(x - x1, y - y1);
+        }
+        return Math.abs(dx * (y0 - y) - dy * (x0 - x)) / Math.sqrt(lengthSquared);
+    }
+
+    private static double[] extent(List<double[]> lines) {
+        double[] extent = {Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE};
+        for (double[] pts : lines) {
+            for (int i = 0; i < pts.length; i += 2) {
+                extent[0] = Math.min(extent[0], pts[i]);
+                extent[1] = Math.max(extent[1], pts[i]);
+                extent[2] = Math.min(extent[2], pts[i + 1]);
+                extent[3] = Math.max(extent[3], pts[i + 1]);
+            }
+        }
+        return extent;
+    }
+
+    private interface SegmentPredicate {
+        boolean test(int id, double[] segment);
+    }
+
+    // Uniform grid over the extent of the geometry, sized so that a cell holds a few segments on average
+    private static final class SegmentIndex {
+        private final double minX;
+        private final double minY;
+        private final double cellSize;
+        private final Long2ObjectOpenHashMap<IntArrayList> cells = new Long2ObjectOpenHashMap<>();
+        private final List<double[]> segments = new ArrayList<>();
+        private final IntArrayList ids = new IntArrayList();
+        private int[] seen = new int[16];
+        private int queryStamp = 0;
+
+        SegmentIndex(double[] extent, int expectedSegments) {
+            this.minX = extent[0];
+            this.minY = extent[2];
+            double size = Math.max(extent[1] - extent[0], extent[3] - extent[2]);
+            this.cellSize = size > 0 ? size / Math.max(1, Math.sqrt(expectedSegments)) : 1;
+        }
+
+        int size() {
+            return segments.size();
+        }
+
+        void add(int id, double x0, double y0, double x1, double y1) {
+            int slot = segments.size();
+            segments.add(new double[]{x0, y0, x1, y1});
+            ids.add(id);
+            if (seen.length <= slot) {
+                seen = Arrays.copyOf(seen, Math.max(2 * seen.length, slot + 1));
+            }
+            for (long cell : cellsOf(x0, y0, x1, y1)) {
+                cells.computeIfAbsent(cell, c -> new IntArrayList(4)).add(slot);
+            }
+        }
+
+        boolean anyMatch(double x0, double y0, double x1, double y1, SegmentPredicate predicate) {
+            queryStamp++;
+            for (long cell : cellsOf(x0, y0, x1, y1)) {
+                IntArrayList slots = cells.get(cell);
+                if (slots == null) {
+                    continue;
+                }
+                for (int i = 0; i < slots.size(); i++) {
+                    int slot = slots.getInt(i);
+                    if (seen[slot] == queryStamp) {
+                        continue;
+                    }
+                    seen[slot] = queryStamp;
+                    if (predicate.test(ids.getInt(slot), segments.get(slot))) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private long[] cellsOf(double x0, double y0, double x1, double y1) {
+            int cx0 = cell(Math.min(x0, x1) - minX);
+            int cx1 = cell(Math.max(x0, x1) - minX);
+            int cy0 = cell(Math.min(y0, y1) - minY);
+            int cy1 = cell(Math.max(y0, y1) - minY);
+            long[] result = new long[(cx1 - cx0 + 1) * (cy1 - cy0 + 1)];
+            int n = 0;
+            for (int cx = cx0; cx <= cx1; cx++) {
+                for (int cy = cy0; cy <= cy1; cy++) {
+                    result[n++] = (long) cx << 32 | (cy & 0xFFFFFFFFL);
+                }
+            }
+            return result;
+        }
+
+        private int cell(double offset) {
+            return (int) Math.floor(offset / cellSize);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package org.hylly.mtk2garmin;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hylly.mtk2garmin.TestCell.LEFT;
+import static org.hylly.mtk2garmin.TestCell.LEFT_EXTENT;
+import static org.hylly.mtk2garmin.TestCell.line;
+import static org.hylly.mtk2garmin.TestCell.point;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class CellCacheTest {
+    private static final Map<String, String> ROAD = Map.of("kohdeluokka", "12111", "tasosijainti", "0");
+    private static final Map<String, String> NAME = Map.of("kohdeluokka", "48111", "teksti", "Paikka", "teksti_kieli", "fin");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replayedCellIsWrittenLikeConvertedOne() throws IOException {
+        CellCache cache = new CellCache(dir.resolve("cache"));
+        File converted = dir.resolve("converted.osm.pbf").toFile();
+        OSMPBFWriter writer = new OSMPBFWriter(converted, PBFBlockEncoder.UNCOMPRESSED, 1);
+        OSMPBFWriter.CellRuns runs = convertedCell().writeTo(writer);
+        writer.closeOSMPBFFile();
+        cache.store(new CellCache.Entry(LEFT, "fingerprint", runs));
+
+        CellCache.Entry cached = new CellCache(dir.resolve("cache")).load(LEFT, "fingerprint");
+        File replayed = dir.resolve("replayed.osm.pbf").toFile();
+        OSMPBFWriter replayWriter = new OSMPBFWriter(replayed, PBFBlockEncoder.UNCOMPRESSED, 1);
+        cache.replay(cached, replayWriter);
+        replayWriter.closeOSMPBFFile();
+
+        assertNotNull(cached);
+        assertEquals(LEFT, cached.cell());
+        assertArrayEquals(runs.nodes(), cached.runs().nodes());
+        assertArrayEquals(runs.ways(), cached.runs().ways());
+        assertArrayEquals(runs.relations(), cached.runs().relations());
+        assertEquals(-1, Files.mismatch(converted.toPath(), replayed.toPath()));
+    }
+
+    @Test
+    void otherFingerprintOrCellMisses() throws IOException {
+        CellCache cache = new CellCache(dir);
+        cache.store(entry("fingerprint", 1));
+
+        assertNull(cache.load(LEFT, "other fingerprint"));
+        assertNull(cache.load(TestCell.RIGHT, "fingerprint"));
+        assertNotNull(cache.load(LEFT, "fingerprint"));
+    }
+
+    @Test
+    void otherFormatVersionMisses() throws IOException {
+        CellCache cache = new CellCache(dir);
+        cache.store(entry("fingerprint", 1));
+
+        // The version follows the magic number
+        try (RandomAccessFile file = new RandomAccessFile(dir.resolve(LEFT + ".cell").toFile(), "rw")) {
+            file.seek(8);
+            file.writeInt(CellCache.FORMAT_VERSION - 1);
+        }
+
+        assertNull(cache.load(LEFT, "fingerprint"));
+    }
+
+    @Test
+    void truncatedEntryMisses() throws IOException {
+        CellCache cache = new CellCache(dir);
+        cache.store(entry("fingerprint", 1));
+        Path file = dir.resolve(LEFT + ".cell");
+
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 10));
+
+        assertNull(cache.load(LEFT, "fingerprint"));
+    }
+
+    @Test
+    void storeReplacesEntryAtomically() throws IOException {
+        CellCache cache = new CellCache(dir);
+        cache.store(entry("first", 1));
+        // Left over by a conversion that crashed while storing the cell
+        Files.write(dir.resolve(LEFT + ".cell.tmp"), new byte[]{1, 2, 3});
+
+        assertNotNull(cache.load(LEFT, "first"));
+
+        cache.store(entry("second", 2));
+
+        assertNull(cache.load(LEFT, "first"));
+        assertArrayEquals(new byte[]{2, 2}, cache.load(LEFT, "second").runs().nodes());
+        assertFalse(Files.exists(dir.resolve(LEFT + ".cell.tmp")));
+        try (var files = Files.list(dir)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    void changedInputOrSettingChangesFingerprint() throws IOException {
+        Path krkDir = Files.createDirectories(dir.resolve("krk/L41"));
+        File cellFile = dir.resolve(LEFT + ".zip").toFile();
+        Files.write(cellFile.toPath(), new byte[]{1, 2, 3});
+        String fingerprint = fingerprint(cellFile, Map.of());
+
+        assertEquals(fingerprint, fingerprint(cellFile, Map.of()));
+        // KRK zips of the right half are not read into the left cell
+        Files.write(krkDir.resolve("L4133E.zip"), new byte[]{1});
+        assertEquals(fingerprint, fingerprint(cellFile, Map.of()));
+
+        Files.write(krkDir.resolve("L4133A.zip"), new byte[]{1});
+        String withKrk = fingerprint(cellFile, Map.of());
+        assertNotEquals(fingerprint, withKrk);
+        Files.write(krkDir.resolve("L4133A.zip"), new byte[]{2});
+        assertNotEquals(withKrk, fingerprint(cellFile, Map.of()));
+
+        String current = fingerprint(cellFile, Map.of());
+        Files.write(cellFile.toPath(), new byte[]{1, 2, 4});
+        String changedCell = fingerprint(cellFile, Map.of());
+        assertNotEquals(current, changedCell);
+
+        assertNotEquals(changedCell, fingerprint(cellFile, Map.of("gmlReader", "java")));
+        assertNotEquals(changedCell, fingerprint(cellFile, Map.of("tagMapping", "builtin")));
+        assertNotEquals(changedCell, fingerprint(cellFile, Map.of("simplifier", "gdal")));
+    }
+
+    @Test
+    void changedInputMissesTheCache() throws IOException {
+        Files.createDirectories(dir.resolve("krk"));
+        File cellFile = dir.resolve(LEFT + ".zip").toFile();
+        Files.write(cellFile.toPath(), new byte[]{1, 2, 3});
+        CellCache cache = new CellCache(dir.resolve("cache"));
+        cache.store(new CellCache.Entry(LEFT, fingerprint(cellFile, Map.of()), entry("", 1).runs()));
+
+        assertNotNull(cache.load(LEFT, fingerprint(cellFile, Map.of())));
+
+        Files.write(cellFile.toPath(), new byte[]{1, 2, 3, 4});
+
+        assertNull(cache.load(LEFT, fingerprint(cellFile, Map.of())));
+    }
+
+    private String fingerprint(File cellFile, Map<String, String> settings) throws IOException {
+        Map<String, String> conf = new HashMap<>(settings);
+        conf.put("kiinteistorajat", dir.resolve("krk").toString());
+        return new TestCell(cellFile, LEFT, LEFT_EXTENT, conf, null).convert().fingerprint();
+    }
+
+    private static SingleCellConverter convertedCell() {
+        SingleCellConverter cell = new TestCell(LEFT, LEFT_EXTENT)
+                .add("Tieviiva", ROAD, line(388000, 6678000, 390000, 6679000, 391000, 6678000))
+                .add("Nimi", NAME, point(386000, 6678500))
+                .convert();
+        cell.assignFeatureIDs();
+        return cell;
+    }
+
+    private static CellCache.Entry entry(String fingerprint, int content) {
+        byte b = (byte) content;
+        return new CellCache.Entry(LEFT, fingerprint, new OSMPBFWriter.CellRuns(new byte[]{b, b}, new byte[]{b}, new byte[0]));
+    }
+}
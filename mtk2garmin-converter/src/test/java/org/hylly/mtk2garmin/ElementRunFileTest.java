@@ -0,0 +1,197 @@
+package org.hylly.mtk2garmin;
+
+import it.unimi.dsi.fastutil.ints.Int2IntLinkedOpenHashMap;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ElementRunFileTest {
+    private final StringTable stringTable = new StringTable();
+    private final CellElementStore store = new CellElementStore(16, 16);
+
+    private final List<ElementRunFile> openFiles = new ArrayList<>();
+
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    void closeFiles() throws IOException {
+        for (ElementRunFile file : openFiles) {
+            file.close();
+        }
+    }
+
+    @Test
+    void nodesRoundTrip() throws IOException {
+        // Ids go up and down, so the deltas are negative as well, and cross the size of an int
+        long[] ids = {50000000000L, 7, 21434745463993344L, -3, 21434745463993345L};
+        int tags = tags("natural", "peak", "name", "Halti");
+        ElementRunOutput output = new ElementRunOutput(stringTable);
+        for (int i = 0; i < ids.length; i++) {
+            output.startRecord(ids[i]);
+            output.writeCoordinates(60.1 + i, -24.9 - i);
+            output.writeTags(store, i % 2 == 0 ? tags : CellElementStore.NO_TAGS);
+        }
+
+        ElementRunInput input = readSingleRun(ElementType.NODE, output.toByteArray());
+
+        assertArrayEquals(new double[]{60.1, -24.9 - 4, 60.1 + 4, -24.9}, input.getBounds());
+        for (int i = 0; i < ids.length; i++) {
+            assertTrue(input.next());
+            assertEquals(ids[i], input.getId());
+            assertEquals(60.1 + i, input.lat);
+            assertEquals(-24.9 - i, input.lon);
+            if (i % 2 == 0) {
+                assertEquals(List.of("natural", "name"), input.tagKeys);
+                assertEquals(List.of("peak", "Halti"), input.tagValues);
+            } else {
+                assertTrue(input.tagKeys.isEmpty());
+            }
+        }
+        assertFalse(input.next());
+    }
+
+    @Test
+    void waysRoundTrip() throws IOException {
+        long[] refs = {50000000100L, 50000000001L, 50000000100L, 29654707794444L, 50000000000L};
+        ElementRunOutput output = new ElementRunOutput(stringTable);
+        output.startRecord(1000);
+        output.writeTags(store, tags("highway", "track", "name", "Jääkärintie"));
+        output.startRefs(refs.length);
+        for (long ref : refs) {
+            output.writeRef(ref);
+        }
+        output.startRecord(1001);
+        output.writeTags(store, CellElementStore.NO_TAGS);
+        output.startRefs(0);
+
+        ElementRunInput input = readSingleRun(ElementType.WAY, output.toByteArray());
+
+        assertTrue(input.next());
+        assertEquals(1000, input.getId());
+        assertEquals(List.of("Jääkärintie"), input.tagValues.subList(1, 2));
+        assertEquals(List.of(50000000100L, 50000000001L, 50000000100L, 29654707794444L, 50000000000L), input.refs);
+        assertTrue(input.next());
+        assertEquals(1001, input.getId());
+        assertTrue(input.refs.isEmpty());
+        assertFalse(input.next());
+    }
+
+    @Test
+    void relationsRoundTrip() throws IOException {
+        int outer = stringTable.getStringId("outer");
+        int inner = stringTable.getStringId("inner");
+        ElementRunOutput output = new ElementRunOutput(stringTable);
+        output.startRecord(77);
+        output.writeTags(store, tags("type", "multipolygon"));
+        output.startRefs(2);
+        output.writeRef(500);
+        output.writeByte(ElementType.WAY.ordinal());
+        output.writeString(outer);
+        output.writeRef(400);
+        output.writeByte(ElementType.WAY.ordinal());
+        output.writeString(inner);
+
+        ElementRunInput input = readSingleRun(ElementType.RELATION, output.toByteArray());
+
+        assertTrue(input.next());
+        assertEquals(List.of(500L, 400L), input.refs);
+        assertEquals(List.of((byte) ElementType.WAY.ordinal(), (byte) ElementType.WAY.ordinal()), input.memberTypes);
+        assertEquals(List.of("outer", "inner"), input.memberRoles);
+        assertFalse(input.next());
+    }
+
+    @Test
+    void stringsAreWrittenOncePerRun() {
+        int tags = tags("kohdeluokka", "12111", "tasosijainti", "0");
+        ElementRunOutput output = new ElementRunOutput(stringTable);
+        for (int i = 0; i < 100; i++) {
+            output.startRecord(i);
+            output.writeTags(store, tags);
+        }
+
+        byte[] run = output.toByteArray();
+
+        // The run starts with its string table, the four strings of the tags, followed by the record count
+        assertEquals(4, run[0]);
+        int recordCount = indexOfRecordCount(run);
+        assertEquals(1 + 4 + "kohdeluokka12111tasosijainti0".length(), recordCount);
+        assertEquals(100, run[recordCount]);
+    }
+
+    @Test
+    void runsAreReadPerShardWithTheirOrder() throws IOException {
+        // The runs are larger than the 64 kB read buffer of two runs, so it is refilled while reading
+        byte[] first = wayRun(0, 20000);
+        byte[] second = wayRun(1, 20000);
+        byte[] other = wayRun(2, 10);
+
+        try (ElementRunFile file = new ElementRunFile(ElementType.WAY, dir.resolve("ways.spill").toFile())) {
+            file.appendRun(first, 0, 5);
+            file.appendRun(other, 1, 0);
+            file.appendRun(second, 0, 2);
+
+            List<ElementRunInput> runs = file.openRuns(0);
+
+            assertEquals(2, runs.size());
+            assertEquals(List.of(0, 2), runs.stream().map(ElementRunInput::getRunIndex).toList());
+            assertEquals(List.of(5, 2), runs.stream().map(ElementRunInput::getOrder).toList());
+            for (int r = 0; r < runs.size(); r++) {
+                ElementRunInput run = runs.get(r);
+                for (int i = 0; i < 20000; i++) {
+                    assertTrue(run.next());
+                    assertEquals(3L * i + (r == 0 ? 0 : 1), run.getId());
+                    assertEquals(List.of(10L * i, 10L * i + 1), run.refs);
+                }
+                assertFalse(run.next());
+            }
+        }
+        assertFalse(dir.resolve("ways.spill").toFile().exists());
+    }
+
+    private byte[] wayRun(int first, int count) {
+        ElementRunOutput output = new ElementRunOutput(stringTable);
+        for (int i = 0; i < count; i++) {
+            output.startRecord(3L * i + first);
+            output.writeTags(store, tags("name", "Tie " + i));
+            output.startRefs(2);
+            output.writeRef(10L * i);
+            output.writeRef(10L * i + 1);
+        }
+        return output.toByteArray();
+    }
+
+    private ElementRunInput readSingleRun(ElementType type, byte[] run) throws IOException {
+        ElementRunFile file = new ElementRunFile(type, dir.resolve(type + ".spill").toFile());
+        openFiles.add(file);
+        file.appendRun(run, 0, 0);
+        return file.openRuns(0).get(0);
+    }
+
+    private int tags(String... keysValues) {
+        Int2IntLinkedOpenHashMap tags = new Int2IntLinkedOpenHashMap();
+        for (int i = 0; i < keysValues.length; i += 2) {
+            tags.put(stringTable.getStringId(keysValues[i]), stringTable.getStringId(keysValues[i + 1]));
+        }
+        return store.addTagSet(tags);
+    }
+
+    // Offset of the record count, which follows the string table of a run with short strings
+    private static int indexOfRecordCount(byte[] run) {
+        int offset = 1;
+        for (int i = 0; i < run[0]; i++) {
+            offset += 1 + run[offset];
+        }
+        return offset;
+    }
+}
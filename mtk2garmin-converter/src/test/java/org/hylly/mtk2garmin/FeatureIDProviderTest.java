@@ -0,0 +1,67 @@
+package org.hylly.mtk2garmin;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FeatureIDProviderTest {
+    private final GeomUtils geomUtils = new GeomUtils();
+
+    @Test
+    void farCornerHasTheLargestHash() {
+        Random random = new Random(1);
+
+        assertEquals(GeomUtils.MAX_HASH, geomUtils.hashCoords(GeomUtils.COORD_MAX_X, GeomUtils.COORD_MAX_Y));
+        for (int i = 0; i < 100000; i++) {
+            double x = GeomUtils.COORD_DELTA_X + random.nextDouble() * (GeomUtils.COORD_MAX_X - GeomUtils.COORD_DELTA_X);
+            double y = GeomUtils.COORD_DELTA_Y + random.nextDouble() * (GeomUtils.COORD_MAX_Y - GeomUtils.COORD_DELTA_Y);
+            assertTrue(geomUtils.hashCoords(x, y) <= GeomUtils.MAX_HASH);
+        }
+    }
+
+    @Test
+    void rejectsCoordinatesOutsideTheHashableArea() {
+        assertThrows(IllegalArgumentException.class, () -> geomUtils.hashCoords(GeomUtils.COORD_MAX_X + 1, GeomUtils.COORD_DELTA_Y));
+        assertThrows(IllegalArgumentException.class, () -> geomUtils.hashCoords(GeomUtils.COORD_DELTA_X, GeomUtils.COORD_MAX_Y + 1));
+        assertThrows(IllegalArgumentException.class, () -> geomUtils.hashCoords(GeomUtils.COORD_DELTA_X - 1, GeomUtils.COORD_DELTA_Y));
+    }
+
+    @Test
+    void pointIdsAreNeverNodeIds() {
+        long largestNodeId = FeatureIDProvider.getNodeID(GeomUtils.MAX_HASH);
+
+        // The lowest cell code gives the lowest point ids
+        assertTrue(FeatureIDProvider.getPointIDBase("000000", 1) > largestNodeId);
+        assertTrue(FeatureIDProvider.getPointIDBase("L4133L", 1) > largestNodeId);
+    }
+
+    @Test
+    void nodeIdsDifferPerPixel() {
+        // Neighbouring 1 m pixels in both directions, in the south-west and north-east of Finland
+        double[][] corners = {{2300000, 8400000}, {3500000, 11000000}};
+        for (double[] corner : corners) {
+            long id = FeatureIDProvider.getNodeID(geomUtils.hashCoords(corner[0], corner[1]));
+            assertEquals(id, FeatureIDProvider.getNodeID(geomUtils.hashCoords(corner[0] + 0.5, corner[1] + 0.5)));
+            assertNotEquals(id, FeatureIDProvider.getNodeID(geomUtils.hashCoords(corner[0] + 1, corner[1])));
+            assertNotEquals(id, FeatureIDProvider.getNodeID(geomUtils.hashCoords(corner[0], corner[1] + 1)));
+            // The pairing is not symmetric, swapping the offsets gives another id
+            double dx = corner[0] - GeomUtils.COORD_DELTA_X;
+            double dy = corner[1] - GeomUtils.COORD_DELTA_Y;
+            assertNotEquals(id, FeatureIDProvider.getNodeID(geomUtils.hashCoords(GeomUtils.COORD_DELTA_X + dy, GeomUtils.COORD_DELTA_Y + dx)));
+        }
+    }
+
+    @Test
+    void cellsHaveSeparateIdRanges() {
+        long localIds = 1L << 24;
+
+        assertEquals(FeatureIDProvider.getWayIDBase("L4133L", 1) + localIds, FeatureIDProvider.getWayIDBase("L4133M", 1));
+        assertEquals(FeatureIDProvider.getPointIDBase("L4133L", 1) + localIds, FeatureIDProvider.getPointIDBase("L4133M", 1));
+        assertThrows(IllegalStateException.class, () -> FeatureIDProvider.getWayIDBase("L4133L", localIds));
+    }
+}
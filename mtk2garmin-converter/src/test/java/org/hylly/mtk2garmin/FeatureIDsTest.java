@@ -0,0 +1,185 @@
+package org.hylly.mtk2garmin;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hylly.mtk2garmin.TestCell.LEFT;
+import static org.hylly.mtk2garmin.TestCell.LEFT_EXTENT;
+import static org.hylly.mtk2garmin.TestCell.RIGHT;
+import static org.hylly.mtk2garmin.TestCell.RIGHT_EXTENT;
+import static org.hylly.mtk2garmin.TestCell.line;
+import static org.hylly.mtk2garmin.TestCell.point;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FeatureIDsTest {
+    private static final Map<String, String> CONTOUR = Map.of("kohdeluokka", "52100", "korkeusarvo", "95000");
+    private static final Map<String, String> ROAD = Map.of("kohdeluokka", "12111", "tasosijainti", "0");
+    private static final Map<String, String> NAME = Map.of("kohdeluokka", "48111", "teksti", "Paikka", "teksti_kieli", "fin");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void pointOnLineReadIntoTwoCellsKeepsItsTags() throws IOException {
+        // The contour is in both cells whole, as additional data is, the name on one of its vertices only
+        // in the left cell, away from the border
+        FlatGeometry contour = line(385000, 6678000, 386000, 6678500, 398000, 6678000);
+        SingleCellConverter left = new TestCell(LEFT, LEFT_EXTENT)
+                .add("Korkeuskayra", CONTOUR, contour)
+                .add("Nimi", NAME, point(386000, 6678500))
+                .convert();
+        SingleCellConverter right = new TestCell(RIGHT, RIGHT_EXTENT)
+                .add("Korkeuskayra", CONTOUR, contour)
+                .convert();
+
+        PbfContent pbf = read(write("out.osm.pbf", left, right));
+
+        assertEquals(2, pbf.ways.size());
+        assertEquals(pbf.ways.get(0).refs(), pbf.ways.get(1).refs());
+        for (long ref : pbf.ways.get(0).refs()) {
+            assertTrue(pbf.node(ref).tags().isEmpty());
+        }
+        PbfContent.Node name = pbf.nodes.stream().filter(node -> !node.tags().isEmpty()).findFirst().orElseThrow();
+        assertEquals("Paikka", name.tags().get("name"));
+        assertFalse(pbf.ways.get(0).refs().contains(name.id()));
+        assertEquals(4, pbf.nodes.size());
+    }
+
+    @Test
+    void borderNodesAreSharedAndWrittenOnce() throws IOException {
+        // The road is clipped at the cell border like MTK data, both halves end on the same border node
+        SingleCellConverter left = new TestCell(LEFT, LEFT_EXTENT)
+                .add("Tieviiva", ROAD, line(388000, 6678000, 390000, 6679000, 392000, 6678000))
+                .convert();
+        SingleCellConverter right = new TestCell(RIGHT, RIGHT_EXTENT)
+                .add("Tieviiva", ROAD, line(392000, 6678000, 394000, 6677000, 396000, 6678000))
+                .convert();
+
+        PbfContent pbf = read(write("out.osm.pbf", left, right));
+
+        assertEquals(5, pbf.nodes.size());
+        List<Long> leftRefs = pbf.ways.get(0).refs();
+        List<Long> rightRefs = pbf.ways.get(1).refs();
+        assertEquals(leftRefs.get(2), rightRefs.get(0));
+        long borderHash = new GeomUtils().hashCoords(mercator(392000, 6678000)[0], mercator(392000, 6678000)[1]);
+        assertEquals(FeatureIDProvider.getNodeID(borderHash), rightRefs.get(0));
+        assertNotEquals(pbf.ways.get(0).id(), pbf.ways.get(1).id());
+    }
+
+    @Test
+    void pointsGetIdsOfTheirCell() throws IOException {
+        // The same name in both cells is two points, numbered in reading order within the cell
+        SingleCellConverter left = new TestCell(LEFT, LEFT_EXTENT)
+                .add("Nimi", NAME, point(386000, 6678000))
+                .add("Nimi", NAME, point(391999, 6678000))
+                .convert();
+        SingleCellConverter right = new TestCell(RIGHT, RIGHT_EXTENT)
+                .add("Nimi", NAME, point(391999, 6678000))
+                .convert();
+
+        PbfContent pbf = read(write("out.osm.pbf", left, right));
+
+        long leftBase = FeatureIDProvider.getPointIDBase(LEFT, 2);
+        long rightBase = FeatureIDProvider.getPointIDBase(RIGHT, 1);
+        assertEquals(List.of(leftBase, leftBase + 1, rightBase), pbf.nodes.stream().map(PbfContent.Node::id).toList());
+        assertEquals(pbf.nodes.get(1).lat(), pbf.nodes.get(2).lat());
+        assertTrue(leftBase > FeatureIDProvider.getNodeID(GeomUtils.MAX_HASH));
+    }
+
+    @Test
+    void idsDoNotDependOnThreadsOrCellOrder() throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            File sequential = write("sequential.osm.pbf", randomCell(LEFT, LEFT_EXTENT, null), randomCell(RIGHT, RIGHT_EXTENT, null));
+
+            // The right cell is converted and written first, the run order puts it back after the left one
+            SingleCellConverter right = randomCell(RIGHT, RIGHT_EXTENT, pool);
+            SingleCellConverter left = randomCell(LEFT, LEFT_EXTENT, pool);
+            File file = dir.resolve("pooled.osm.pbf").toFile();
+            OSMPBFWriter writer = new OSMPBFWriter(file, PBFBlockEncoder.UNCOMPRESSED, 3);
+            writer.useRunOrder(1);
+            right.assignFeatureIDs();
+            right.writeTo(writer);
+            writer.useRunOrder(0);
+            left.assignFeatureIDs();
+            left.writeTo(writer);
+            writer.closeOSMPBFFile();
+
+            assertTrue(read(sequential).ways.size() > 2500);
+            assertEquals(-1, Files.mismatch(sequential.toPath(), file.toPath()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void sameWayTwiceFailsTheMerge() throws IOException {
+        SingleCellConverter left = new TestCell(LEFT, LEFT_EXTENT)
+                .add("Tieviiva", ROAD, line(388000, 6678000, 390000, 6679000))
+                .convert();
+        left.assignFeatureIDs();
+        OSMPBFWriter writer = new OSMPBFWriter(dir.resolve("out.osm.pbf").toFile(), PBFBlockEncoder.UNCOMPRESSED, 1);
+        left.writeTo(writer);
+        left.writeTo(writer);
+
+        // The nodes are merged as shared ones, the way id is taken twice
+        IllegalStateException e = assertThrows(IllegalStateException.class, writer::closeOSMPBFFile);
+        assertTrue(e.getMessage().startsWith("WAY "));
+    }
+
+    // Roads and names spread over the cell, more than a batch of the feature pool, many of them crossing the
+    // cell border, where both cells get the same random roads
+    private static SingleCellConverter randomCell(String cell, double[] extent, ForkJoinPool pool) {
+        TestCell testCell = new TestCell(cell, extent, Map.of(), pool);
+        Random random = new Random(1);
+        for (int i = 0; i < 3000; i++) {
+            double x = LEFT_EXTENT[0] + random.nextDouble() * (RIGHT_EXTENT[1] - LEFT_EXTENT[0]);
+            double y = LEFT_EXTENT[2] + random.nextDouble() * (LEFT_EXTENT[3] - LEFT_EXTENT[2] - 500);
+            FlatGeometry road = line(x, y, x + 200, y + 300, x + 50, y + 500);
+            if (x < extent[0] - 200 || x > extent[1]) {
+                continue;
+            }
+            testCell.add("Tieviiva", ROAD, road);
+            if (i % 3 == 0) {
+                testCell.add("Nimi", NAME, point(x + 200, y + 300));
+            }
+        }
+        return testCell.convert();
+    }
+
+    private File write(String name, SingleCellConverter... cells) throws IOException {
+        File file = dir.resolve(name).toFile();
+        OSMPBFWriter writer = new OSMPBFWriter(file, PBFBlockEncoder.UNCOMPRESSED, 1);
+        for (SingleCellConverter cell : cells) {
+            cell.assignFeatureIDs();
+            cell.writeTo(writer);
+        }
+        writer.closeOSMPBFFile();
+        return file;
+    }
+
+    private static PbfContent read(File file) throws IOException {
+        return PbfContent.read(file);
+    }
+
+    private static double[] mercator(double x, double y) {
+        double[] lonLat = new double[2];
+        Projections.tm35ToGeographic(x, y, lonLat);
+        double[] xy = new double[2];
+        Projections.geographicToMercator(lonLat[0], lonLat[1], xy);
+        return xy;
+    }
+}
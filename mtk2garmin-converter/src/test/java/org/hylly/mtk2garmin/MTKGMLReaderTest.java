@@ -0,0 +1,131 @@
+package org.hylly.mtk2garmin;
+
+import com.typesafe.config.ConfigFactory;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import org.gdal.ogr.DataSource;
+import org.gdal.ogr.Feature;
+import org.gdal.ogr.FeatureDefn;
+import org.gdal.ogr.Layer;
+import org.gdal.ogr.ogr;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class MTKGMLReaderTest {
+    private final StringTable stringtable = new StringTable();
+    private final ObjectOpenHashSet<String> wantedFields = TagRules.fromConfig(ConfigFactory.empty())
+            .handler(TagRules.MML, stringtable).getWantedFields();
+
+    private record ReadFeature(String layer, Map<String, String> fields, FlatGeometry geometry) {
+    }
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsMTKGeometries() throws Exception {
+        List<ReadFeature> features = readJava();
+
+        assertEquals(List.of("Tieviiva", "Tieviiva", "Jarvi", "Nimi"), features.stream().map(ReadFeature::layer).toList());
+
+        FlatGeometry road = features.get(0).geometry();
+        assertEquals(FlatGeometry.LINESTRING, road.type);
+        assertArrayEquals(new double[]{385000, 6678000, 385100, 6678050, 385200, 6678000}, road.coords);
+        assertEquals("12141", features.get(0).fields().get("kohdeluokka"));
+        assertEquals("Paikkatie", features.get(0).fields().get("nimi_suomi"));
+
+        FlatGeometry lake = features.get(2).geometry();
+        assertEquals(FlatGeometry.POLYGON, lake.type);
+        assertEquals(2, lake.getGeometryCount());
+        assertEquals(FlatGeometry.LINEARRING, lake.getGeometry(0).type);
+        assertEquals(5, lake.getGeometry(0).getPointCount());
+        assertEquals(4, lake.getGeometry(1).getPointCount());
+        assertEquals("Paikkajärvi", features.get(2).fields().get("nimi_suomi"));
+
+        // The name with an excluded class is filtered out
+        FlatGeometry name = features.get(3).geometry();
+        assertEquals(FlatGeometry.POINT, name.type);
+        assertArrayEquals(new double[]{386200, 6678500}, name.coords);
+        assertEquals("Paikka", features.get(3).fields().get("teksti"));
+        assertEquals("fin", features.get(3).fields().get("teksti_kieli"));
+    }
+
+    @Test
+    void matchesGDALReader() throws Exception {
+        assumeTrue(gdalAvailable(), "GDAL natives are not available");
+        Path gml = dir.resolve("mtk-cell.xml");
+        try (InputStream in = MTKGMLReaderTest.class.getResourceAsStream("/mtk-cell.xml")) {
+            Files.copy(in, gml);
+        }
+
+        // Same attribute filter as the OGR path of the converter
+        List<ReadFeature> gdalFeatures = new ArrayList<>();
+        DataSource source = ogr.Open(gml.toString());
+        for (int l = 0; l < source.GetLayerCount(); l++) {
+            Layer layer = source.GetLayer(l);
+            layer.SetAttributeFilter(new MMLFeaturePreprocess().getAttributeFilterString());
+            FeatureDefn definition = layer.GetLayerDefn();
+            Feature feature;
+            while ((feature = layer.GetNextFeature()) != null) {
+                Map<String, String> fields = new TreeMap<>();
+                for (int i = 0; i < definition.GetFieldCount(); i++) {
+                    String field = definition.GetFieldDefn(i).GetName();
+                    if (wantedFields.contains(field) && feature.IsFieldSetAndNotNull(i)) {
+                        fields.put(field, feature.GetFieldAsString(i));
+                    }
+                }
+                gdalFeatures.add(new ReadFeature(layer.GetName(), fields, FlatGeometry.fromGeometry(feature.GetGeometryRef())));
+                feature.delete();
+            }
+        }
+        source.delete();
+
+        List<ReadFeature> javaFeatures = readJava();
+        assertEquals(gdalFeatures.size(), javaFeatures.size());
+        for (int i = 0; i < gdalFeatures.size(); i++) {
+            ReadFeature expected = gdalFeatures.get(i);
+            ReadFeature actual = javaFeatures.get(i);
+            assertEquals(expected.layer(), actual.layer());
+            assertEquals(expected.fields(), actual.fields());
+            assertTrue(expected.geometry().sameAs(actual.geometry()), "geometry of " + expected.layer() + " " + i);
+        }
+    }
+
+    private List<ReadFeature> readJava() throws IOException, XMLStreamException {
+        List<ReadFeature> features = new ArrayList<>();
+        MTKGMLReader reader = new MTKGMLReader(stringtable, wantedFields, new MMLFeaturePreprocess());
+        try (InputStream in = MTKGMLReaderTest.class.getResourceAsStream("/mtk-cell.xml")) {
+            reader.read(in, (layer, fields, geometry) -> {
+                Map<String, String> named = new TreeMap<>();
+                fields.forEach((id, value) -> named.put(stringtable.getStringById(id), value));
+                features.add(new ReadFeature(layer, named, geometry));
+            });
+        }
+        assertEquals(5, reader.getFeatureCount());
+        assertEquals(1, reader.getFilteredCount());
+        return features;
+    }
+
+    private static boolean gdalAvailable() {
+        try {
+            ogr.RegisterAll();
+            return true;
+        } catch (UnsatisfiedLinkError e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.hylly.mtk2garmin;
+
+import crosby.binary.Osmformat;
+import it.unimi.dsi.fastutil.ints.Int2IntLinkedOpenHashMap;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PBFBlockEncoderTest {
+    private static final int NODES = 8001;
+
+    private final StringTable stringTable = new StringTable();
+    private final CellElementStore store = new CellElementStore(16, 16);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void nodesAreDenseAndDeltaCoded() throws IOException {
+        PbfContent pbf = PbfContent.read(encode("out.osm.pbf", PBFBlockEncoder.UNCOMPRESSED, 1, new double[]{59.5, 20.5, 70.1, 31.6}));
+
+        // One block is full, the last node goes to a second one
+        List<Osmformat.PrimitiveBlock> nodeBlocks = pbf.blocks.subList(0, 2);
+        assertEquals(8000, nodeBlocks.get(0).getPrimitivegroup(0).getDense().getIdCount());
+        assertEquals(1, nodeBlocks.get(1).getPrimitivegroup(0).getDense().getIdCount());
+        assertEquals(NODES, pbf.nodes.size());
+        for (int i = 0; i < NODES; i++) {
+            PbfContent.Node node = pbf.nodes.get(i);
+            assertEquals(nodeId(i), node.id());
+            // Granularity 100 keeps coordinates to 1e-7 degrees
+            assertEquals(lat(i), node.lat(), 0.5e-7);
+            assertEquals(lon(i), node.lon(), 0.5e-7);
+            assertEquals(i % 10 == 0 ? Map.of("natural", "peak", "name", "Huippu " + i) : Map.of(), node.tags());
+        }
+    }
+
+    @Test
+    void waysAndRelationsAreDeltaCoded() throws IOException {
+        PbfContent pbf = PbfContent.read(encode("out.osm.pbf", PBFBlockEncoder.UNCOMPRESSED, 1, null));
+
+        assertEquals(2, pbf.ways.size());
+        assertEquals(List.of(nodeId(5), nodeId(2), nodeId(5), nodeId(NODES - 1)), pbf.ways.get(0).refs());
+        assertEquals(Map.of("highway", "track"), pbf.ways.get(0).tags());
+        assertEquals(List.of(nodeId(0), nodeId(1), nodeId(2), nodeId(0)), pbf.ways.get(1).refs());
+
+        PbfContent.Relation relation = pbf.relations.get(0);
+        assertEquals(List.of(21434745463993345L, 21434745463993344L), relation.memberIds());
+        assertEquals(List.of("outer", "inner"), relation.roles());
+        assertEquals(Map.of("type", "multipolygon"), relation.tags());
+    }
+
+    @Test
+    void blocksHoldOneTypeWithGranularity() throws IOException {
+        PbfContent pbf = PbfContent.read(encode("out.osm.pbf", PBFBlockEncoder.UNCOMPRESSED, 1, null));
+
+        assertEquals(4, pbf.blocks.size());
+        for (Osmformat.PrimitiveBlock block : pbf.blocks) {
+            assertEquals(100, block.getGranularity());
+            assertEquals(1, block.getPrimitivegroupCount());
+            Osmformat.PrimitiveGroup group = block.getPrimitivegroup(0);
+            int types = (group.hasDense() ? 1 : 0) + (group.getWaysCount() > 0 ? 1 : 0) + (group.getRelationsCount() > 0 ? 1 : 0);
+            assertEquals(1, types);
+            assertEquals(0, group.getNodesCount());
+            // Index 0 of every string table is the empty string
+            assertEquals("", block.getStringtable().getS(0).toStringUtf8());
+        }
+    }
+
+    @Test
+    void headerHasFeaturesAndBoundingBox() throws IOException {
+        PbfContent pbf = PbfContent.read(encode("out.osm.pbf", PBFBlockEncoder.UNCOMPRESSED, 1, new double[]{59.5, 20.5, 70.1, 31.6}));
+        PbfContent withoutBounds = PbfContent.read(encode("nobounds.osm.pbf", PBFBlockEncoder.UNCOMPRESSED, 1, null));
+
+        assertEquals(List.of("OsmSchema-V0.6", "DenseNodes"), pbf.header.getRequiredFeaturesList());
+        assertEquals(List.of("Sort.Type_then_ID"), pbf.header.getOptionalFeaturesList());
+        Osmformat.HeaderBBox bbox = pbf.header.getBbox();
+        assertEquals(59500000000L, bbox.getBottom());
+        assertEquals(20500000000L, bbox.getLeft());
+        assertEquals(70100000000L, bbox.getTop());
+        assertEquals(31600000000L, bbox.getRight());
+        assertFalse(withoutBounds.header.hasBbox());
+    }
+
+    @Test
+    void writerHeaderCoversAllNodes() throws IOException {
+        SingleCellConverter left = new TestCell(TestCell.LEFT, TestCell.LEFT_EXTENT)
+                .add("Tieviiva", Map.of("kohdeluokka", "12111"), TestCell.line(381000, 6673000, 391000, 6683000))
+                .convert();
+        SingleCellConverter right = new TestCell(TestCell.RIGHT, TestCell.RIGHT_EXTENT)
+                .add("Tieviiva", Map.of("kohdeluokka", "12111"), TestCell.line(393000, 6683500, 403000, 6672500))
+                .convert();
+        File file = dir.resolve("cells.osm.pbf").toFile();
+        OSMPBFWriter writer = new OSMPBFWriter(file);
+        for (SingleCellConverter cell : List.of(left, right)) {
+            cell.assignFeatureIDs();
+            cell.writeTo(writer);
+        }
+        writer.closeOSMPBFFile();
+
+        PbfContent pbf = PbfContent.read(file);
+
+        // The south-west node is in the left cell, the north-east one in the right
+        Osmformat.HeaderBBox bbox = pbf.header.getBbox();
+        double minLat = pbf.nodes.stream().mapToDouble(PbfContent.Node::lat).min().orElseThrow();
+        double maxLon = pbf.nodes.stream().mapToDouble(PbfContent.Node::lon).max().orElseThrow();
+        assertEquals(minLat, bbox.getBottom() * 1e-9, 1e-7);
+        assertEquals(maxLon, bbox.getRight() * 1e-9, 1e-7);
+        for (PbfContent.Node node : pbf.nodes) {
+            assertTrue(node.lat() >= bbox.getBottom() * 1e-9 - 1e-7 && node.lat() <= bbox.getTop() * 1e-9 + 1e-7);
+            assertTrue(node.lon() >= bbox.getLeft() * 1e-9 - 1e-7 && node.lon() <= bbox.getRight() * 1e-9 + 1e-7);
+        }
+    }
+
+    @Test
+    void compressedBlocksDecodeTheSame() throws IOException {
+        PbfContent raw = PbfContent.read(encode("raw.osm.pbf", PBFBlockEncoder.UNCOMPRESSED, 1, null));
+        File compressedFile = encode("compressed.osm.pbf", PBFBlockEncoder.DEFAULT_COMPRESSION_LEVEL, 4, null);
+        PbfContent compressed = PbfContent.read(compressedFile);
+
+        assertTrue(compressedFile.length() < dir.resolve("raw.osm.pbf").toFile().length());
+        assertEquals(raw.nodes, compressed.nodes);
+        assertEquals(raw.ways, compressed.ways);
+        assertEquals(raw.relations, compressed.relations);
+    }
+
+    // The elements go through sorted runs like in the merge, ids ascending within every type
+    private File encode(String name, int compressionLevel, int threads, double[] bounds) throws IOException {
+        File file = dir.resolve(name).toFile();
+        ElementRunOutput nodes = new ElementRunOutput(stringTable);
+        for (int i = 0; i < NODES; i++) {
+            nodes.startRecord(nodeId(i));
+            nodes.writeCoordinates(lat(i), lon(i));
+            nodes.writeTags(store, i % 10 == 0 ? tags("natural", "peak", "name", "Huippu " + i) : CellElementStore.NO_TAGS);
+        }
+
+        ElementRunOutput ways = new ElementRunOutput(stringTable);
+        ways.startRecord(21434745463993344L);
+        ways.writeTags(store, tags("highway", "track"));
+        ways.startRefs(4);
+        for (int ref : new int[]{5, 2, 5, NODES - 1}) {
+            ways.writeRef(nodeId(ref));
+        }
+        ways.startRecord(21434745463993345L);
+        ways.writeTags(store, CellElementStore.NO_TAGS);
+        ways.startRefs(4);
+        for (int ref : new int[]{0, 1, 2, 0}) {
+            ways.writeRef(nodeId(ref));
+        }
+
+        ElementRunOutput relations = new ElementRunOutput(stringTable);
+        relations.startRecord(21434745463993344L);
+        relations.writeTags(store, tags("type", "multipolygon"));
+        relations.startRefs(2);
+        relations.writeRef(21434745463993345L);
+        relations.writeByte(ElementType.WAY.ordinal());
+        relations.writeString(stringTable.getStringId("outer"));
+        relations.writeRef(21434745463993344L);
+        relations.writeByte(ElementType.WAY.ordinal());
+        relations.writeString(stringTable.getStringId("inner"));
+
+        try (PBFBlockEncoder encoder = new PBFBlockEncoder(new BufferedOutputStream(new FileOutputStream(file)), compressionLevel, threads)) {
+            encoder.writeHeader(bounds);
+            add(encoder, ElementType.NODE, nodes);
+            add(encoder, ElementType.WAY, ways);
+            add(encoder, ElementType.RELATION, relations);
+        }
+        return file;
+    }
+
+    private void add(PBFBlockEncoder encoder, ElementType type, ElementRunOutput output) throws IOException {
+        try (ElementRunFile runFile = new ElementRunFile(type, dir.resolve(type + ".spill").toFile())) {
+            runFile.appendRun(output.toByteArray(), 0, 0);
+            ElementRunInput run = runFile.openRuns(0).get(0);
+            while (run.next()) {
+                encoder.add(run, type);
+            }
+        }
+    }
+
+    private int tags(String... keysValues) {
+        Int2IntLinkedOpenHashMap tags = new Int2IntLinkedOpenHashMap();
+        for (int i = 0; i < keysValues.length; i += 2) {
+            tags.put(stringTable.getStringId(keysValues[i]), stringTable.getStringId(keysValues[i + 1]));
+        }
+        return store.addTagSet(tags);
+    }
+
+    // Way node ids with gaps of different sizes, so the deltas vary
+    private static long nodeId(int i) {
+        return 50000000000L + (long) i * i * 1000 + i;
+    }
+
+    private static double lat(int i) {
+        return 60.1 + (i % 97) * 0.0123456789;
+    }
+
+    private static double lon(int i) {
+        return 24.9 - (i % 89) * 0.0098765432;
+    }
+}
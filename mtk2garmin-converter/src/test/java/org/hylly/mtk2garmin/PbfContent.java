@@ -0,0 +1,161 @@
+package org.hylly.mtk2garmin;
+
+import crosby.binary.Fileformat;
+import crosby.binary.Osmformat;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+ * Elements of a written PBF file, decoded back with the osmpbf classes independently of the encoder
+ */
+class PbfContent {
+    record Node(long id, double lat, double lon, Map<String, String> tags) {
+    }
+
+    record Way(long id, Map<String, String> tags, List<Long> refs) {
+    }
+
+    record Relation(long id, Map<String, String> tags, List<Long> memberIds, List<String> roles) {
+    }
+
+    Osmformat.HeaderBlock header;
+    final List<Osmformat.PrimitiveBlock> blocks = new ArrayList<>();
+    final List<Node> nodes = new ArrayList<>();
+    final List<Way> ways = new ArrayList<>();
+    final List<Relation> relations = new ArrayList<>();
+
+    static PbfContent read(File file) throws IOException {
+        PbfContent content = new PbfContent();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int headerLength;
+                try {
+                    headerLength = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] headerBytes = new byte[headerLength];
+                in.readFully(headerBytes);
+                Fileformat.BlobHeader blobHeader = Fileformat.BlobHeader.parseFrom(headerBytes);
+                byte[] blobBytes = new byte[blobHeader.getDatasize()];
+                in.readFully(blobBytes);
+                byte[] data = unpack(Fileformat.Blob.parseFrom(blobBytes));
+
+                if (blobHeader.getType().equals("OSMHeader")) {
+                    content.header = Osmformat.HeaderBlock.parseFrom(data);
+                } else {
+                    content.add(Osmformat.PrimitiveBlock.parseFrom(data));
+                }
+            }
+        }
+        return content;
+    }
+
+    private static byte[] unpack(Fileformat.Blob blob) throws IOException {
+        if (blob.hasRaw()) {
+            return blob.getRaw().toByteArray();
+        }
+        Inflater inflater = new Inflater();
+        inflater.setInput(blob.getZlibData().toByteArray());
+        byte[] data = new byte[blob.getRawSize()];
+        try {
+            if (inflater.inflate(data) != data.length || !inflater.finished()) {
+                throw new IOException("Blob does not inflate to its raw size");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+        return data;
+    }
+
+    private void add(Osmformat.PrimitiveBlock block) {
+        blocks.add(block);
+        for (Osmformat.PrimitiveGroup group : block.getPrimitivegroupList()) {
+            if (group.hasDense()) {
+                addDense(block, group.getDense());
+            }
+            for (Osmformat.Node node : group.getNodesList()) {
+                nodes.add(new Node(node.getId(), lat(block, node.getLat()), lon(block, node.getLon()),
+                        tags(block, node.getKeysList(), node.getValsList())));
+            }
+            for (Osmformat.Way way : group.getWaysList()) {
+                List<Long> refs = new ArrayList<>();
+                long ref = 0;
+                for (long delta : way.getRefsList()) {
+                    ref += delta;
+                    refs.add(ref);
+                }
+                ways.add(new Way(way.getId(), tags(block, way.getKeysList(), way.getValsList()), refs));
+            }
+            for (Osmformat.Relation relation : group.getRelationsList()) {
+                List<Long> memberIds = new ArrayList<>();
+                List<String> roles = new ArrayList<>();
+                long memberId = 0;
+                for (int i = 0; i < relation.getMemidsCount(); i++) {
+                    memberId += relation.getMemids(i);
+                    memberIds.add(memberId);
+                    roles.add(string(block, relation.getRolesSid(i)));
+                }
+                relations.add(new Relation(relation.getId(), tags(block, relation.getKeysList(), relation.getValsList()), memberIds, roles));
+            }
+        }
+    }
+
+    private void addDense(Osmformat.PrimitiveBlock block, Osmformat.DenseNodes dense) {
+        long id = 0;
+        long lat = 0;
+        long lon = 0;
+        int keyVal = 0;
+        for (int i = 0; i < dense.getIdCount(); i++) {
+            id += dense.getId(i);
+            lat += dense.getLat(i);
+            lon += dense.getLon(i);
+            Map<String, String> tags = new LinkedHashMap<>();
+            if (dense.getKeysValsCount() > 0) {
+                while (dense.getKeysVals(keyVal) != 0) {
+                    tags.put(string(block, dense.getKeysVals(keyVal)), string(block, dense.getKeysVals(keyVal + 1)));
+                    keyVal += 2;
+                }
+                keyVal++;
+            }
+            nodes.add(new Node(id, lat(block, lat), lon(block, lon), tags));
+        }
+    }
+
+    private static double lat(Osmformat.PrimitiveBlock block, long lat) {
+        return 1e-9 * (block.getLatOffset() + (long) block.getGranularity() * lat);
+    }
+
+    private static double lon(Osmformat.PrimitiveBlock block, long lon) {
+        return 1e-9 * (block.getLonOffset() + (long) block.getGranularity() * lon);
+    }
+
+    private static Map<String, String> tags(Osmformat.PrimitiveBlock block, List<Integer> keys, List<Integer> values) {
+        Map<String, String> tags = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            tags.put(string(block, keys.get(i)), string(block, values.get(i)));
+        }
+        return tags;
+    }
+
+    private static String string(Osmformat.PrimitiveBlock block, int id) {
+        return block.getStringtable().getS(id).toStringUtf8();
+    }
+
+    Node node(long id) {
+        return nodes.stream().filter(node -> node.id() == id).findFirst().orElseThrow();
+    }
+}
@@ -0,0 +1,67 @@
+package org.hylly.mtk2garmin;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Cell built from features given in ETRS-TM35FIN by the test, fed through the same path as the OGR
+ * reader after the geometry has been read. The java simplifier is used, so no GDAL natives are needed.
+ */
+class TestCell {
+    static final String TM35FIN = "+proj=utm +zone=35 +ellps=GRS80 +towgs84=0,0,0,0,0,0,0 +units=m +no_defs";
+
+    // Two neighbouring MTK cells, the halves of L4133
+    static final String LEFT = "L4133L";
+    static final double[] LEFT_EXTENT = {380000, 392000, 6672000, 6684000};
+    static final String RIGHT = "L4133R";
+    static final double[] RIGHT_EXTENT = {392000, 404000, 6672000, 6684000};
+
+    private final SingleCellConverter converter;
+
+    TestCell(String cell, double[] extent) {
+        this(cell, extent, Map.of(), null);
+    }
+
+    TestCell(String cell, double[] extent, Map<String, String> settings, ForkJoinPool featurePool) {
+        this(new File(cell + ".zip"), cell, extent, settings, featurePool);
+    }
+
+    TestCell(File cellFile, String cell, double[] extent, Map<String, String> settings, ForkJoinPool featurePool) {
+        Map<String, String> conf = new HashMap<>(Map.of("simplifier", "java"));
+        conf.putAll(settings);
+        Config config = ConfigFactory.parseMap(conf);
+        HashMap<String, double[]> gridExtents = new HashMap<>();
+        gridExtents.put(cell, extent);
+        converter = new SingleCellConverter(cellFile, config, gridExtents, null, null, new GeomUtils(), null,
+                TagRules.fromConfig(config), featurePool);
+    }
+
+    TestCell add(String layer, Map<String, String> fields, FlatGeometry geom) {
+        StringTable stringtable = converter.getStringTable();
+        Int2ObjectOpenHashMap<String> fieldIds = new Int2ObjectOpenHashMap<>();
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            fieldIds.put(stringtable.getStringId(field.getKey()), field.getValue());
+        }
+        converter.handleFlatGeometry(layer, fieldIds, geom.copy(), TM35FIN, converter.getTagHandlerMML());
+        return this;
+    }
+
+    SingleCellConverter convert() {
+        converter.flushFeatures();
+        return converter;
+    }
+
+    static FlatGeometry point(double x, double y) {
+        return FlatGeometry.of(FlatGeometry.POINT, new double[]{x, y});
+    }
+
+    static FlatGeometry line(double... coords) {
+        return FlatGeometry.of(FlatGeometry.LINESTRING, coords);
+    }
+}
@@ -0,0 +1,151 @@
+package org.hylly.mtk2garmin;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TopologyPreservingSimplifierTest {
+    // Same tolerance as the converter, in mercator metres
+    private static final double TOLERANCE = 0.5;
+
+    private final TopologyPreservingSimplifier simplifier = new TopologyPreservingSimplifier(TOLERANCE);
+
+    @Test
+    void flattensSectionsWithinTolerance() {
+        FlatGeometry line = FlatGeometry.of(FlatGeometry.LINESTRING, new double[]{0, 0, 5, 0.4, 10, 0, 20, 5});
+
+        FlatGeometry result = simplifier.simplify(line);
+
+        assertArrayEquals(new double[]{0, 0, 10, 0, 20, 5}, result.coords);
+    }
+
+    @Test
+    void keepsSectionThatWouldCrossAnotherLine() {
+        // Flattening the bump of the first line would cross the second one, which passes below the bump
+        FlatGeometry bump = FlatGeometry.of(FlatGeometry.LINESTRING, new double[]{0, 0, 5, 0.4, 10, 0});
+        FlatGeometry crossing = FlatGeometry.of(FlatGeometry.LINESTRING, new double[]{5, 0.2, 5, -1});
+
+        FlatGeometry result = simplifier.simplify(FlatGeometry.collection(FlatGeometry.MULTILINESTRING, List.of(bump, crossing)));
+
+        assertArrayEquals(bump.coords, result.getGeometry(0).coords);
+        assertArrayEquals(crossing.coords, result.getGeometry(1).coords);
+    }
+
+    @Test
+    void keepsOuterRingSectionThatWouldCrossHole() {
+        double[] outer = {0, 0, 10, 0, 10, 10, 5, 10.4, 0, 10, 0, 0};
+        double[] hole = {4, 9, 6, 9, 5, 10.2, 4, 9};
+
+        FlatGeometry withoutHole = simplifier.simplify(polygon(outer));
+        FlatGeometry withHole = simplifier.simplify(polygon(outer, hole));
+
+        assertArrayEquals(new double[]{0, 0, 10, 0, 10, 10, 0, 10, 0, 0}, withoutHole.getGeometry(0).coords);
+        assertArrayEquals(outer, withHole.getGeometry(0).coords);
+        assertArrayEquals(hole, withHole.getGeometry(1).coords);
+    }
+
+    @Test
+    void keepsSectionThatWouldCrossSameLine() {
+        // The line turns back under its own bump, so the bump can not be flattened
+        double[] coords = {0, 0, 5, 0.4, 10, 0, 10, -1, 5, -1, 5, 0.2};
+
+        FlatGeometry result = simplifier.simplify(FlatGeometry.of(FlatGeometry.LINESTRING, coords));
+
+        assertTrue(containsPoint(result.coords, 5, 0.4));
+        assertFalse(selfIntersects(result.coords));
+    }
+
+    @Test
+    void ringsKeepFourPoints() {
+        // All of the ring is within the tolerance of its start point
+        double[] ring = {0, 0, 0.2, 0, 0.3, 0.1, 0.2, 0.2, 0, 0.2, 0, 0};
+
+        FlatGeometry result = simplifier.simplify(polygon(ring)).getGeometry(0);
+
+        int last = result.getPointCount() - 1;
+        assertTrue(result.getPointCount() >= 4);
+        assertEquals(result.getX(0), result.getX(last));
+        assertEquals(result.getY(0), result.getY(last));
+    }
+
+    @Test
+    void linesKeepTheirEndpoints() {
+        double[] coords = {0, 0, 0.1, 0.1, 0.2, 0, 0.3, 0.1};
+
+        FlatGeometry result = simplifier.simplify(FlatGeometry.of(FlatGeometry.LINESTRING, coords));
+
+        assertArrayEquals(new double[]{0, 0, 0.3, 0.1}, result.coords);
+    }
+
+    @Test
+    void simplifiesLongLines() {
+        // Every section of the zigzag splits next to its start, so the sections nest as deep as the line is
+        // long, deeper than a recursive formulation could go
+        int points = 20000;
+        double[] flat = new double[2 * points];
+        double[] zigzag = new double[2 * points];
+        for (int i = 0; i < points; i++) {
+            flat[2 * i] = i;
+            flat[2 * i + 1] = i % 2 * 0.1;
+            zigzag[2 * i] = i;
+            zigzag[2 * i + 1] = i % 2 * 10;
+        }
+
+        FlatGeometry flatResult = simplifier.simplify(FlatGeometry.of(FlatGeometry.LINESTRING, flat));
+        FlatGeometry zigzagResult = simplifier.simplify(FlatGeometry.of(FlatGeometry.LINESTRING, zigzag));
+
+        assertArrayEquals(new double[]{0, 0, points - 1, 0.1}, flatResult.coords);
+        assertArrayEquals(zigzag, zigzagResult.coords);
+    }
+
+    @Test
+    void leavesPointsAlone() {
+        FlatGeometry point = FlatGeometry.of(FlatGeometry.POINT, new double[]{1, 2});
+
+        assertTrue(point.sameAs(simplifier.simplify(point)));
+    }
+
+    @Test
+    void findsInteriorIntersections() {
+        double[] segment = {0, 0, 10, 0};
+
+        assertTrue(TopologyPreservingSimplifier.hasInteriorIntersection(segment, 5, -1, 5, 1));
+        assertTrue(TopologyPreservingSimplifier.hasInteriorIntersection(segment, 5, 0, 5, 1));
+        assertTrue(TopologyPreservingSimplifier.hasInteriorIntersection(segment, 5, 0, 15, 0));
+        assertFalse(TopologyPreservingSimplifier.hasInteriorIntersection(segment, 10, 0, 15, 5));
+        assertFalse(TopologyPreservingSimplifier.hasInteriorIntersection(segment, 0, 1, 10, 1));
+    }
+
+    private static FlatGeometry polygon(double[]... rings) {
+        return FlatGeometry.collection(FlatGeometry.POLYGON,
+                Arrays.stream(rings).map(ring -> FlatGeometry.of(FlatGeometry.LINEARRING, ring)).toList());
+    }
+
+    private static boolean containsPoint(double[] coords, double x, double y) {
+        for (int i = 0; i < coords.length; i += 2) {
+            if (coords[i] == x && coords[i + 1] == y) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean selfIntersects(double[] coords) {
+        int segments = coords.length / 2 - 1;
+        for (int a = 0; a < segments; a++) {
+            double[] segment = {coords[2 * a], coords[2 * a + 1], coords[2 * a + 2], coords[2 * a + 3]};
+            for (int b = a + 2; b < segments; b++) {
+                if (TopologyPreservingSimplifier.hasInteriorIntersection(segment, coords[2 * b], coords[2 * b + 1], coords[2 * b + 2], coords[2 * b + 3])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}